@@ -0,0 +1,48 @@
+/*
+ * DemoApplication
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.app;
+
+import android.app.Application;
+import com.villoren.android.kalmanlocationmanager.lib.Tracing;
+
+/**
+ * Turns library tracing on for builds with {@code BuildConfig.TRACING} set, see build.gradle.
+ * <p>
+ * {@link Tracing#ENABLED} is fixed when its class is loaded, so the property must be set before any library class
+ * is touched. The Application is created before any Activity, which makes this the earliest place to do it.
+ * Referencing {@link Tracing#PROPERTY} here is safe: it is a constant, inlined by the compiler, and does not load
+ * the class.
+ */
+public class DemoApplication extends Application {
+
+    @Override
+    public void onCreate() {
+
+        if (BuildConfig.TRACING)
+            System.setProperty(Tracing.PROPERTY, "true");
+
+        super.onCreate();
+    }
+}
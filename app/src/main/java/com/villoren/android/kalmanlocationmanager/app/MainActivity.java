@@ -36,6 +36,8 @@ import android.location.LocationManager;
 import android.location.LocationProvider;
 import android.os.Bundle;
 import android.provider.Settings;
+import android.util.Log;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.animation.AlphaAnimation;
@@ -50,7 +52,9 @@ import com.google.android.gms.maps.model.CameraPosition;
 import com.google.android.gms.maps.model.Circle;
 import com.google.android.gms.maps.model.CircleOptions;
 import com.google.android.gms.maps.model.LatLng;
+import com.villoren.android.kalmanlocationmanager.lib.KalmanEstimate;
 import com.villoren.android.kalmanlocationmanager.lib.KalmanLocationManager;
+import com.villoren.android.kalmanlocationmanager.lib.TilePrefetcher;
 
 import java.util.prefs.Preferences;
 
@@ -74,9 +78,25 @@ public class MainActivity extends Activity {
 
     /**
      * For the filter-time argument we use a "real" value: the predictions are triggered by a timer.
-     * Lets say we want 5 updates (estimates) per second = update each 200 millis.
+     * The map is moved on every frame by extrapolating the latest estimate, so one estimate per second is enough.
      */
-    private static final long FILTER_TIME = 200;
+    private static final long FILTER_TIME = 1000;
+
+    /**
+     * Restore the last filter state if the activity was paused less than 10 minutes ago.
+     */
+    private static final long WARM_START_TIME = 10 * 60 * 1000;
+
+    /**
+     * Hint the map tiles along the next 30 seconds of the estimated path, remembering the last 256 hinted.
+     */
+    private static final double PREFETCH_LOOK_AHEAD = 30.0;
+    private static final int PREFETCH_CAPACITY = 256;
+
+    /**
+     * Logger tag.
+     */
+    private static final String TAG = MainActivity.class.getSimpleName();
 
     // Context
     private KalmanLocationManager mKalmanLocationManager;
@@ -103,6 +123,15 @@ public class MainActivity extends Activity {
     // GoogleMaps own OnLocationChangedListener (not android's LocationListener)
     private LocationSource.OnLocationChangedListener mOnLocationChangedListener;
 
+    // Tiles ahead, hinted on each estimate
+    private TilePrefetcher mTilePrefetcher;
+    private final KalmanEstimate mPrefetchEstimate = new KalmanEstimate();
+
+    // Per-frame extrapolation, reused on every frame
+    private final KalmanEstimate mFrameEstimate = new KalmanEstimate();
+    private final Location mFrameLocation = new Location(KalmanLocationManager.KALMAN_PROVIDER);
+    private float mBearing;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -110,6 +139,8 @@ public class MainActivity extends Activity {
 
         // Context
         mKalmanLocationManager = new KalmanLocationManager(this);
+        mKalmanLocationManager.setWarmStart(WARM_START_TIME);
+        mTilePrefetcher = new TilePrefetcher(mTilePrefetcherListener, PREFETCH_LOOK_AHEAD, PREFETCH_CAPACITY);
         mPreferences = getPreferences(Context.MODE_PRIVATE);
 
         // Init maps
@@ -225,10 +256,13 @@ public class MainActivity extends Activity {
         // request updates every 5 seconds.
 
         // For the filtertime argument we use a "real" value: the predictions are triggered by a timer.
-        // Lets say we want 5 updates per second = update each 200 millis.
+        // One update per second is enough, the map is moved on every frame by extrapolating the estimate.
 
         mKalmanLocationManager.requestLocationUpdates(
                 UseProvider.GPS_AND_NET, FILTER_TIME, GPS_TIME, NET_TIME, mLocationListener, true);
+
+        // Start per-frame map updates
+        Choreographer.getInstance().postFrameCallback(mFrameCallback);
     }
 
     @Override
@@ -236,6 +270,9 @@ public class MainActivity extends Activity {
         super.onPause();
         mMapView.onPause();
 
+        // Stop per-frame map updates
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+
         // Remove location updates
         mKalmanLocationManager.removeUpdates(mLocationListener);
 
@@ -275,22 +312,15 @@ public class MainActivity extends Activity {
                 tvNet.startAnimation(mNetAnimation);
             }
 
-            // If Kalman location and google maps activated the supplied mLocationSource
-            if (location.getProvider().equals(KalmanLocationManager.KALMAN_PROVIDER)
-                    && mOnLocationChangedListener != null) {
-
-                // Update blue "myLocation" dot
-                mOnLocationChangedListener.onLocationChanged(location);
+            // Kalman location. Map and "myLocation" dot are moved on every frame by mFrameCallback
+            if (location.getProvider().equals(KalmanLocationManager.KALMAN_PROVIDER)) {
 
-                // Update camera position
-                CameraPosition position = CameraPosition.builder(mGoogleMap.getCameraPosition())
-                        .target(latLng)
-                        .bearing(location.getBearing())
-                        .zoom(sbZoom.getProgress() / 10.0f + 10.0f)
-                    .build();
+                // Keep bearing for the camera
+                mBearing = location.getBearing();
 
-                CameraUpdate update = CameraUpdateFactory.newCameraPosition(position);
-                mGoogleMap.animateCamera(update, (int) FILTER_TIME, null);
+                // Hint the tiles the camera is heading to, from the estimate brought up to now
+                if (mKalmanLocationManager.getEstimate(mLocationListener, System.nanoTime(), mPrefetchEstimate))
+                    mTilePrefetcher.prefetch(mPrefetchEstimate, (int) getZoom());
 
                 // Update altitude
                 String altitude = location.hasAltitude() ? String.format("%.1f", location.getAltitude()) : "-";
@@ -372,6 +402,72 @@ public class MainActivity extends Activity {
         }
     };
 
+    /**
+     * Moves the camera and the blue "myLocation" dot on every frame, extrapolating the latest filter estimate
+     * to the frame time.
+     * <p>
+     * Querying and extrapolating the estimate allocates nothing, and neither does the dot. The camera update does:
+     * GoogleMap only takes immutable LatLng and CameraPosition objects, so each frame allocates a few of them.
+     */
+    private Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+
+            // Schedule next frame
+            Choreographer.getInstance().postFrameCallback(this);
+
+            if (!mKalmanLocationManager.getEstimate(mLocationListener, frameTimeNanos, mFrameEstimate))
+                return;
+
+            // Update blue "myLocation" dot, if google maps activated the supplied mLocationSource. Accuracy grows
+            // with the extrapolation
+            if (mOnLocationChangedListener != null) {
+
+                mFrameLocation.setLatitude(mFrameEstimate.getLatitude());
+                mFrameLocation.setLongitude(mFrameEstimate.getLongitude());
+                mFrameLocation.setAccuracy(mFrameEstimate.getAccuracy());
+                mFrameLocation.setBearing(mBearing);
+                mOnLocationChangedListener.onLocationChanged(mFrameLocation);
+            }
+
+            // Update camera position. Allocates, see above
+            LatLng latLng = new LatLng(mFrameEstimate.getLatitude(), mFrameEstimate.getLongitude());
+
+            CameraPosition position = CameraPosition.builder(mGoogleMap.getCameraPosition())
+                    .target(latLng)
+                    .bearing(mBearing)
+                    .zoom(getZoom())
+                .build();
+
+            mGoogleMap.moveCamera(CameraUpdateFactory.newCameraPosition(position));
+        }
+    };
+
+    /**
+     * Receives the tiles to fetch ahead of the camera.
+     * <p>
+     * GoogleMap doesn't take prefetch requests for its own tiles, so this demo only logs them. An app drawing its
+     * tiles through a {@link com.google.android.gms.maps.model.TileProvider TileProvider} would fetch them here
+     * into the cache that provider reads from.
+     */
+    private TilePrefetcher.Listener mTilePrefetcherListener = new TilePrefetcher.Listener() {
+
+        @Override
+        public void onPrefetch(int zoom, int x, int y) {
+
+            Log.d(TAG, String.format("Prefetch tile %d/%d/%d", zoom, x, y));
+        }
+    };
+
+    /**
+     * @return Camera zoom level, as set with the seek bar.
+     */
+    private float getZoom() {
+
+        return sbZoom.getProgress() / 10.0f + 10.0f;
+    }
+
     /**
      * Location Source for google maps 'my location' layer.
      */
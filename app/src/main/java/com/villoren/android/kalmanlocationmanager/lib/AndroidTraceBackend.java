@@ -0,0 +1,109 @@
+/*
+ * AndroidTraceBackend
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Sends trace events to {@link Trace}, so they show up in systrace and Perfetto along with the rest of the app.
+ * <p>
+ * Sections need API 18; async sections API 29, and are looked up by reflection since they are newer than the
+ * compile SDK. Events that the running platform lacks are dropped.
+ */
+class AndroidTraceBackend implements Tracing.Backend {
+
+    private static final String TAG = AndroidTraceBackend.class.getSimpleName();
+
+    private final boolean mHasSections;
+    private final Method mBeginAsyncSection, mEndAsyncSection;
+
+    AndroidTraceBackend() {
+
+        mHasSections = Build.VERSION.SDK_INT >= 18;
+
+        Method beginAsyncSection = null, endAsyncSection = null;
+
+        if (Build.VERSION.SDK_INT >= 29) {
+
+            try {
+
+                beginAsyncSection = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+                endAsyncSection = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+
+            } catch (NoSuchMethodException e) {
+
+                Log.w(TAG, "Async trace sections not available", e);
+            }
+        }
+
+        mBeginAsyncSection = beginAsyncSection;
+        mEndAsyncSection = endAsyncSection;
+    }
+
+    @Override
+    public void begin(String name) {
+
+        if (mHasSections)
+            Trace.beginSection(name);
+    }
+
+    @Override
+    public void end() {
+
+        if (mHasSections)
+            Trace.endSection();
+    }
+
+    @Override
+    public void beginAsync(String name, int cookie) {
+
+        invoke(mBeginAsyncSection, name, cookie);
+    }
+
+    @Override
+    public void endAsync(String name, int cookie) {
+
+        invoke(mEndAsyncSection, name, cookie);
+    }
+
+    private void invoke(Method method, String name, int cookie) {
+
+        if (method == null)
+            return;
+
+        try {
+
+            method.invoke(null, name, cookie);
+
+        } catch (Exception e) {
+
+            Log.w(TAG, "Could not trace " + name, e);
+        }
+    }
+}
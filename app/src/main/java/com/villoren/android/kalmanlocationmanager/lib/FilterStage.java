@@ -0,0 +1,58 @@
+/*
+ * FilterStage
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+/**
+ * Processing stage run on the filter thread after each prediction, before the estimate is published and delivered.
+ * <p>
+ * Each filter thread runs its own stages, created by the factories given to
+ * {@link KalmanLocationManager#addFilterStage(FilterStage.Factory)}, so stages may keep state without
+ * synchronization.
+ */
+public interface FilterStage {
+
+    /**
+     * Creates the stages of each filter thread.
+     */
+    interface Factory {
+
+        /**
+         * Called on a filter thread, before running the stage for the first time.
+         *
+         * @return New stage, only ever used by that thread.
+         */
+        FilterStage create();
+    }
+
+    /**
+     * Called on the filter thread for each prediction. Must return quickly, since it delays delivery.
+     * <p>
+     * Stages may replace the horizontal position with {@link KalmanEstimate#correct(double, double, double)
+     * correct}, which is delivered to the listener and fed back into the filter as a pseudo-measurement.
+     *
+     * @param estimate Predicted estimate. Must not be kept after returning.
+     */
+    void onEstimate(KalmanEstimate estimate);
+}
@@ -0,0 +1,295 @@
+/*
+ * FloatLocationFusion
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.ALTITUDE_NOISE;
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.COORDINATE_NOISE;
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.DEG_TO_METER;
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.METER_TO_DEG;
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.TIME_STEP;
+
+/**
+ * Single precision counterpart of {@link LocationFusion}, for keeping the state of many devices in memory.
+ * <p>
+ * Runs the same filter, but in meters relative to a local origin instead of in degrees, so floats keep millimeter
+ * precision. The origin moves along with the device when it gets too far. Settings are shared by all instances, so
+ * each one only holds its state: about a quarter of the memory of a LocationFusion.
+ * <p>
+ * Covariances are updated in Joseph form, which keeps them symmetric and positive definite despite rounding.
+ * Not thread safe.
+ */
+public class FloatLocationFusion {
+
+    /**
+     * Axis offsets.
+     */
+    private static final int NORTH = 0, EAST = 5, UP = 10;
+
+    /**
+     * Offsets within each axis.
+     */
+    private static final int POSITION = 0, VELOCITY = 1, POSITION_VARIANCE = 2, COVARIANCE = 3, VELOCITY_VARIANCE = 4;
+
+    /**
+     * Distance from the origin that triggers moving it, in meters. Float resolution there is about 1 mm.
+     */
+    private static final float REBASE_DISTANCE = 10000.0f;
+
+    /**
+     * Time step, and process noise covariance per unit of process noise variance.
+     */
+    private static final float T = (float) TIME_STEP;
+    private static final float QA = (float) (TIME_STEP * TIME_STEP * TIME_STEP * TIME_STEP / 4.0);
+    private static final float QB = (float) (TIME_STEP * TIME_STEP * TIME_STEP / 2.0);
+    private static final float QD = (float) (TIME_STEP * TIME_STEP);
+
+    /**
+     * Process noise variances, in squared meters. Longitude noise is fixed in degrees, so east noise is further
+     * scaled by the squared cosine of the origin latitude.
+     */
+    private static final float HORIZONTAL_NOISE_2 =
+            (float) (COORDINATE_NOISE * DEG_TO_METER * COORDINATE_NOISE * DEG_TO_METER);
+    private static final float VERTICAL_NOISE_2 = (float) (ALTITUDE_NOISE * ALTITUDE_NOISE);
+
+    /**
+     * Local origin, in degrees.
+     */
+    private double mOriginLatitude, mOriginLongitude;
+
+    /**
+     * Cosine of the origin latitude. East meters per longitude meter at the equator.
+     */
+    private float mCosine;
+
+    /**
+     * State and covariance of each axis.
+     */
+    private final float[] mState = new float[15];
+
+    private boolean mStarted, mHasAltitude, mPredicted;
+
+    /**
+     * Same as {@link LocationFusion#correct(double, double, double, boolean, double)}.
+     */
+    public void correct(double latitude, double longitude, double altitude, boolean hasAltitude, double accuracy) {
+
+        if (Tracing.ENABLED)
+            Tracing.begin(Tracing.CORRECT);
+
+        if (!mStarted) {
+
+            setOrigin(latitude, longitude);
+
+            mStarted = true;
+            initialize(NORTH, 0.0f, (float) accuracy);
+            initialize(EAST, 0.0f, (float) (accuracy * Math.cos(Math.toRadians(latitude)) * mCosine));
+        }
+
+        if (!mPredicted) {
+
+            predict(NORTH, HORIZONTAL_NOISE_2);
+            predict(EAST, HORIZONTAL_NOISE_2 * mCosine * mCosine);
+        }
+
+        // Same noise as the degree based filter, scaled to meters
+        final float north = (float) ((latitude - mOriginLatitude) * DEG_TO_METER);
+        final float east = (float) ((longitude - mOriginLongitude) * DEG_TO_METER * mCosine);
+
+        update(NORTH, north, (float) accuracy);
+        update(EAST, east, (float) (accuracy * Math.cos(Math.toRadians(latitude)) * mCosine));
+
+        if (hasAltitude) {
+
+            if (!mHasAltitude) {
+
+                mHasAltitude = true;
+                initialize(UP, (float) altitude, (float) accuracy);
+            }
+
+            if (!mPredicted)
+                predict(UP, VERTICAL_NOISE_2);
+
+            update(UP, (float) altitude, (float) accuracy);
+        }
+
+        mPredicted = false;
+
+        if (Math.abs(mState[NORTH + POSITION]) > REBASE_DISTANCE
+                || Math.abs(mState[EAST + POSITION]) > REBASE_DISTANCE) {
+
+            rebase();
+        }
+
+        if (Tracing.ENABLED)
+            Tracing.end();
+    }
+
+    /**
+     * Same as {@link LocationFusion#predict(boolean)}.
+     */
+    public void predict(boolean altitude) {
+
+        if (Tracing.ENABLED)
+            Tracing.begin(Tracing.PREDICT);
+
+        predict(NORTH, HORIZONTAL_NOISE_2);
+        predict(EAST, HORIZONTAL_NOISE_2 * mCosine * mCosine);
+
+        if (altitude)
+            predict(UP, VERTICAL_NOISE_2);
+
+        mPredicted = true;
+
+        if (Tracing.ENABLED)
+            Tracing.end();
+    }
+
+    /**
+     * @return True once the first fix was fused.
+     */
+    public boolean isStarted() { return mStarted; }
+
+    /**
+     * @return True if altitude is being tracked.
+     */
+    public boolean hasAltitudeTracker() { return mHasAltitude; }
+
+    /**
+     * @return Estimated latitude, in degrees.
+     */
+    public double getLatitude() { return mOriginLatitude + mState[NORTH + POSITION] * METER_TO_DEG; }
+
+    /**
+     * @return Estimated longitude, in degrees.
+     */
+    public double getLongitude() { return mOriginLongitude + mState[EAST + POSITION] * METER_TO_DEG / mCosine; }
+
+    /**
+     * @return Estimated altitude, in meters. Only meaningful if {@link #hasAltitudeTracker()}.
+     */
+    public double getAltitude() { return mState[UP + POSITION]; }
+
+    /**
+     * @return Accuracy reported by estimates, in meters.
+     */
+    public double getAccuracy() { return Math.sqrt(mState[NORTH + VELOCITY_VARIANCE]) / T; }
+
+    private void setOrigin(double latitude, double longitude) {
+
+        mOriginLatitude = latitude;
+        mOriginLongitude = longitude;
+        mCosine = (float) Math.cos(Math.toRadians(latitude));
+    }
+
+    /**
+     * Move the origin to the current position. East terms are rescaled, since meters per longitude degree change.
+     */
+    private void rebase() {
+
+        final double latitude = getLatitude();
+        final double longitude = getLongitude();
+        final float cosine = mCosine;
+
+        setOrigin(latitude, longitude);
+
+        final float scale = mCosine / cosine;
+
+        mState[NORTH + POSITION] = 0.0f;
+        mState[EAST + POSITION] = 0.0f;
+        mState[EAST + VELOCITY] *= scale;
+        mState[EAST + POSITION_VARIANCE] *= scale * scale;
+        mState[EAST + COVARIANCE] *= scale * scale;
+        mState[EAST + VELOCITY_VARIANCE] *= scale * scale;
+    }
+
+    /**
+     * Same as {@link Tracker1D#setState(double, double, double)} with zero velocity.
+     */
+    private void initialize(int axis, float position, float noise) {
+
+        final float n2 = noise * noise;
+
+        mState[axis + POSITION] = position;
+        mState[axis + VELOCITY] = 0.0f;
+        mState[axis + POSITION_VARIANCE] = n2 * QA;
+        mState[axis + COVARIANCE] = n2 * QB;
+        mState[axis + VELOCITY_VARIANCE] = n2 * QD;
+    }
+
+    /**
+     * Same as {@link Tracker1D#predict(double)} with no acceleration.
+     */
+    private void predict(int axis, float noise2) {
+
+        final float[] s = mState;
+
+        final float Pa = s[axis + POSITION_VARIANCE];
+        final float Pb = s[axis + COVARIANCE];
+        final float Pd = s[axis + VELOCITY_VARIANCE];
+
+        // x = F.x
+        s[axis + POSITION] += s[axis + VELOCITY] * T;
+
+        // P = F.P.F' + Q
+        final float Pdt = Pd * T;
+
+        s[axis + POSITION_VARIANCE] = Pa + T * (2.0f * Pb + Pdt) + noise2 * QA;
+        s[axis + COVARIANCE] = Pb + Pdt + noise2 * QB;
+        s[axis + VELOCITY_VARIANCE] = Pd + noise2 * QD;
+    }
+
+    /**
+     * Same as {@link Tracker1D#update(double, double)}, with the covariance updated in Joseph form:
+     * P = (I - K.H).P.(I - K.H)' + K.R.K'
+     */
+    private void update(int axis, float position, float noise) {
+
+        final float[] s = mState;
+
+        final float Pa = s[axis + POSITION_VARIANCE];
+        final float Pb = s[axis + COVARIANCE];
+        final float Pd = s[axis + VELOCITY_VARIANCE];
+        final float r = noise * noise;
+
+        //  y = z - H.x
+        final float y = position - s[axis + POSITION];
+
+        // K = P.H'.(H.P.H' + R)^(-1)
+        final float si = 1.0f / (Pa + r);
+        final float Ka = Pa * si;
+        final float Kb = Pb * si;
+
+        // x = x + K.y
+        s[axis + POSITION] += Ka * y;
+        s[axis + VELOCITY] += Kb * y;
+
+        // With I - K.H = [1 - Ka 0; -Kb 1]
+        final float Ia = 1.0f - Ka;
+
+        s[axis + POSITION_VARIANCE] = Ia * Ia * Pa + Ka * Ka * r;
+        s[axis + COVARIANCE] = Ia * (Pb - Kb * Pa) + Ka * Kb * r;
+        s[axis + VELOCITY_VARIANCE] = Pd - 2.0f * Kb * Pb + Kb * Kb * (Pa + r);
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * GeofenceEngine
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import android.os.Handler;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.DEG_TO_METER;
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.METER_TO_DEG;
+
+/**
+ * Factory of filter stages that evaluate circular geofences against each estimate.
+ * <p>
+ * Fences are kept in a grid index, so each estimate is only tested against the fences around it, plus the
+ * fences it is currently inside of. The filter position covariance provides hysteresis: a fence is entered
+ * once the estimate is inside it by more than its own uncertainty, and exited once it is outside by more than
+ * that, so events don't flicker on the boundary.
+ * <p>
+ * Fences may be added and removed from any thread. Each filter thread keeps its own index and inside state, rebuilt
+ * on its next estimate after a change, so with several listeners each one's estimates enter and exit fences on their
+ * own. Events are delivered on the thread that created the engine.
+ */
+public class GeofenceEngine implements FilterStage.Factory {
+
+    /**
+     * Receives geofence transitions.
+     */
+    public interface Listener {
+
+        /**
+         * @param id Id of the entered fence.
+         */
+        void onEnter(int id);
+
+        /**
+         * @param id Id of the exited fence.
+         */
+        void onExit(int id);
+    }
+
+    /**
+     * Grid cell size, in degrees (roughly 500 m).
+     */
+    private static final double CELL_SIZE = 0.005;
+
+    /**
+     * Hysteresis margin, in standard deviations of the estimated position.
+     */
+    private static final double HYSTERESIS_SIGMAS = 1.0;
+
+    // Client side
+    private final Handler mClientHandler;
+    private final Listener mListener;
+
+    /**
+     * Fences by id, as latitude, longitude and radius. Guarded by itself.
+     */
+    private final Map<Integer, double[]> mFences = new LinkedHashMap<Integer, double[]>();
+
+    /**
+     * Incremented on every change, under the same lock. Read by the filter threads without locking.
+     */
+    private volatile int mVersion;
+
+    /**
+     * Creates a geofence engine. Must be called from a thread with a Looper, where events will be delivered.
+     *
+     * @param listener Receives enter and exit events.
+     */
+    public GeofenceEngine(Listener listener) {
+
+        if (listener == null)
+            throw new IllegalArgumentException("listener can't be null");
+
+        mClientHandler = new Handler();
+        mListener = listener;
+    }
+
+    /**
+     * Adds a circular fence, replacing any fence with the same id.
+     *
+     * @param id Id reported in events.
+     * @param latitude Center latitude, in degrees.
+     * @param longitude Center longitude, in degrees.
+     * @param radius Radius, in meters.
+     */
+    public void addGeofence(int id, double latitude, double longitude, double radius) {
+
+        synchronized (mFences) {
+
+            mFences.put(id, new double[] { latitude, longitude, radius });
+            mVersion++;
+        }
+    }
+
+    /**
+     * Removes a fence. No exit event is delivered for it.
+     *
+     * @param id Id of the fence to remove.
+     */
+    public void removeGeofence(int id) {
+
+        synchronized (mFences) {
+
+            if (mFences.remove(id) != null)
+                mVersion++;
+        }
+    }
+
+    @Override
+    public FilterStage create() {
+
+        return new Evaluator();
+    }
+
+    /**
+     * Stage of one filter thread.
+     */
+    private class Evaluator implements FilterStage {
+
+        // Indexed fences, and the version they were built from
+        private int[] mIds = new int[0];
+        private double[] mLatitudes = new double[0], mLongitudes = new double[0], mRadii = new double[0];
+        private GridIndex mIndex = new GridIndex(new double[0], CELL_SIZE);
+        private int mBuiltVersion;
+
+        // Fences the estimate is inside of, by index
+        private boolean[] mInside = new boolean[0];
+        private int[] mInsideList = new int[0];
+        private int mInsideCount;
+
+        // Scratch
+        private int[] mLookup = new int[0];
+
+        @Override
+        public void onEstimate(KalmanEstimate estimate) {
+
+            if (mBuiltVersion != mVersion)
+                rebuild();
+
+            final double latitude = estimate.getLatitude();
+            final double longitude = estimate.getLongitude();
+            final double cos = Math.cos(Math.toRadians(latitude));
+
+            // Horizontal standard deviation, from the position covariance
+            final double sigma = DEG_TO_METER * Math.sqrt(Math.max(
+                    estimate.getPositionVariance(KalmanEstimate.LATITUDE),
+                    estimate.getPositionVariance(KalmanEstimate.LONGITUDE) * cos * cos));
+
+            final double margin = HYSTERESIS_SIGMAS * sigma;
+
+            // Exits, among the fences we're inside of
+            for (int k = mInsideCount - 1; k >= 0; k--) {
+
+                final int fence = mInsideList[k];
+
+                if (distance(fence, latitude, longitude, cos) - margin > mRadii[fence]) {
+
+                    mInside[fence] = false;
+                    mInsideList[k] = mInsideList[--mInsideCount];
+                    post(mIds[fence], false);
+                }
+            }
+
+            // Enters, among the fences around
+            final int found = mIndex.query(latitude, longitude, latitude, longitude, mLookup);
+
+            for (int k = 0; k < found; k++) {
+
+                final int fence = mLookup[k];
+
+                if (!mInside[fence] && distance(fence, latitude, longitude, cos) + margin < mRadii[fence]) {
+
+                    mInside[fence] = true;
+                    mInsideList[mInsideCount++] = fence;
+                    post(mIds[fence], true);
+                }
+            }
+        }
+
+        /**
+         * Rebuild the index from the current fences, keeping the inside state of fences that remain.
+         */
+        private void rebuild() {
+
+            int[] ids;
+            double[] latitudes, longitudes, radii;
+
+            synchronized (mFences) {
+
+                mBuiltVersion = mVersion;
+
+                final int count = mFences.size();
+                ids = new int[count];
+                latitudes = new double[count];
+                longitudes = new double[count];
+                radii = new double[count];
+
+                int i = 0;
+
+                for (Map.Entry<Integer, double[]> entry : mFences.entrySet()) {
+
+                    ids[i] = entry.getKey();
+                    latitudes[i] = entry.getValue()[0];
+                    longitudes[i] = entry.getValue()[1];
+                    radii[i] = entry.getValue()[2];
+                    i++;
+                }
+            }
+
+            // Bounding boxes
+            double[] bounds = new double[4 * ids.length];
+
+            for (int i = 0; i < ids.length; i++) {
+
+                final double latitudeRadius = radii[i] * METER_TO_DEG;
+                final double longitudeRadius = latitudeRadius / Math.cos(Math.toRadians(latitudes[i]));
+
+                bounds[4 * i] = latitudes[i] - latitudeRadius;
+                bounds[4 * i + 1] = longitudes[i] - longitudeRadius;
+                bounds[4 * i + 2] = latitudes[i] + latitudeRadius;
+                bounds[4 * i + 3] = longitudes[i] + longitudeRadius;
+            }
+
+            // Carry inside state over by id
+            Map<Integer, Integer> newIndices = new HashMap<Integer, Integer>();
+
+            for (int i = 0; i < ids.length; i++)
+                newIndices.put(ids[i], i);
+
+            boolean[] inside = new boolean[ids.length];
+            int[] insideList = new int[ids.length];
+            int insideCount = 0;
+
+            for (int k = 0; k < mInsideCount; k++) {
+
+                Integer fence = newIndices.get(mIds[mInsideList[k]]);
+
+                if (fence != null) {
+
+                    inside[fence] = true;
+                    insideList[insideCount++] = fence;
+                }
+            }
+
+            mIds = ids;
+            mLatitudes = latitudes;
+            mLongitudes = longitudes;
+            mRadii = radii;
+            mIndex = new GridIndex(bounds, CELL_SIZE);
+            mInside = inside;
+            mInsideList = insideList;
+            mInsideCount = insideCount;
+
+            // Room for every fence, so no fence around is ever left out
+            mLookup = new int[ids.length];
+        }
+
+        /**
+         * Planar distance from a fence center, in meters.
+         */
+        private double distance(int fence, double latitude, double longitude, double cos) {
+
+            final double dx = (mLongitudes[fence] - longitude) * cos * DEG_TO_METER;
+            final double dy = (mLatitudes[fence] - latitude) * DEG_TO_METER;
+
+            return Math.sqrt(dx * dx + dy * dy);
+        }
+    }
+
+    private void post(final int id, final boolean enter) {
+
+        mClientHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+
+                if (enter)
+                    mListener.onEnter(id);
+                else
+                    mListener.onExit(id);
+            }
+        });
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * GnssInput
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import android.location.Location;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads an external GNSS receiver from a channel, on its own thread, and feeds its fixes to a filter thread as if
+ * they came from one more provider.
+ * <p>
+ * The channel may be anything blocking: a Bluetooth or USB serial bridge, a socket, or a file with a recording.
+ * Reading stops at its end, or when it's closed, either by the application or by {@link #close()}.
+ */
+class GnssInput extends Thread implements GnssParser.Listener {
+
+    /**
+     * Logger tag.
+     */
+    private static final String TAG = GnssInput.class.getSimpleName();
+
+    /**
+     * Gap between fixes after which receiver time is anchored again, in milliseconds.
+     */
+    private static final long MAX_FIX_GAP = 10000;
+
+    private final ReadableByteChannel mChannel;
+    private final String mProvider;
+    private final LooperThread mLooperThread;
+    private final GnssParser mParser = new GnssParser(this);
+
+    /**
+     * Receiver time of the last fix (0 if none), and the smallest offset from receiver time to arrival time seen
+     * since anchoring, in milliseconds. Fixes often arrive in bursts, e.g. over Bluetooth, which would lump fixes
+     * of different time steps together; the least delayed one tells when each was actually taken.
+     */
+    private long mLastFixTime, mRealtimeOffset;
+
+    /**
+     * @param channel Blocking channel to read NMEA or UBX from.
+     * @param provider Provider name of the fixes, e.g. to set its noise.
+     * @param looperThread Filter thread to feed.
+     */
+    GnssInput(ReadableByteChannel channel, String provider, LooperThread looperThread) {
+
+        super(GnssInput.class.getSimpleName() + " " + provider);
+
+        mChannel = channel;
+        mProvider = provider;
+        mLooperThread = looperThread;
+
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+
+        // Parsed in place, only partial sentences are ever moved
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(GnssParser.MIN_BUFFER_SIZE);
+
+        try {
+
+            while (mChannel.read(buffer) >= 0) {
+
+                buffer.flip();
+                mParser.parse(buffer);
+                buffer.compact();
+            }
+
+            mParser.flush();
+
+        } catch (ClosedChannelException e) {
+
+            // Closed on purpose
+
+        } catch (IOException e) {
+
+            Log.w(TAG, "Reading " + mProvider + " failed.", e);
+
+        } finally {
+
+            close();
+        }
+
+        Log.d(TAG, mProvider + ": " + mParser.getSentenceCount() + " sentences, " + mParser.getFrameCount()
+                + " frames, " + mParser.getErrorCount() + " errors.");
+    }
+
+    /**
+     * Close the channel, which stops reading.
+     */
+    public void close() {
+
+        try {
+
+            mChannel.close();
+
+        } catch (IOException e) {
+
+            Log.w(TAG, "Closing " + mProvider + " failed.", e);
+        }
+    }
+
+    @Override
+    public void onFix(long time, double latitude, double longitude, double altitude, float accuracy, float speed,
+                      float bearing)
+    {
+        Location location = new Location(mProvider);
+
+        location.setTime(time);
+        location.setLatitude(latitude);
+        location.setLongitude(longitude);
+
+        final long arrival = SystemClock.elapsedRealtime();
+
+        // Anchor again after a gap, or if receiver time goes backwards, e.g. when replaying a recording
+        if (mLastFixTime == 0 || time < mLastFixTime || time - mLastFixTime > MAX_FIX_GAP
+                || arrival - time < mRealtimeOffset) {
+
+            mRealtimeOffset = arrival - time;
+        }
+
+        mLastFixTime = time;
+
+        if (Build.VERSION.SDK_INT >= 17)
+            location.setElapsedRealtimeNanos((time + mRealtimeOffset) * 1000000);
+
+        if (!Double.isNaN(altitude))
+            location.setAltitude(altitude);
+
+        // Without accuracy the filter ignores it, as it does for any other provider
+        if (!Float.isNaN(accuracy))
+            location.setAccuracy(accuracy);
+
+        if (!Float.isNaN(speed))
+            location.setSpeed(speed);
+
+        if (!Float.isNaN(bearing))
+            location.setBearing(bearing);
+
+        mLooperThread.postFix(location);
+    }
+}
@@ -0,0 +1,642 @@
+/*
+ * GnssParser
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Parser of the output of external GNSS receivers: NMEA GGA, RMC and GST sentences, and UBX NAV-PVT frames.
+ * <p>
+ * Parses in place from a {@link ByteBuffer}, typically filled from a serial or TCP bridge channel, without creating
+ * Strings nor allocating anything per sentence. Sentences of the same NMEA epoch are merged into a single fix:
+ * position and altitude from GGA, date, speed and course from RMC, and accuracy from the position error standard
+ * deviations of GST (or HDOP times a typical range error, without GST). A fix is reported as soon as its epoch has
+ * all three, or else when the next epoch starts. NAV-PVT frames are reported right away.
+ * <p>
+ * Receivers should be configured to output either NMEA or UBX, not both, or every fix is reported twice.
+ * Android-free and not thread safe.
+ */
+public class GnssParser {
+
+    /**
+     * Receiver of parsed fixes.
+     */
+    public interface Listener {
+
+        /**
+         * @param time UTC time, in milliseconds since January 1, 1970.
+         * @param latitude Latitude, in degrees.
+         * @param longitude Longitude, in degrees.
+         * @param altitude Height above the WGS 84 ellipsoid, in meters. NaN if unknown.
+         * @param accuracy Horizontal accuracy (root of the summed variances of both axes), in meters. NaN if unknown.
+         * @param speed Speed over ground, in meters per second. NaN if unknown.
+         * @param bearing Course over ground, in degrees. NaN if unknown.
+         */
+        void onFix(long time, double latitude, double longitude, double altitude, float accuracy, float speed,
+                   float bearing);
+    }
+
+    /**
+     * Minimum capacity of the buffers passed to {@link #parse(ByteBuffer)}, so any sentence or frame fits.
+     */
+    public static final int MIN_BUFFER_SIZE = 2048;
+
+    /**
+     * Longest sentence accepted, including delimiters. The standard says 82, some receivers go beyond.
+     */
+    private static final int MAX_SENTENCE = 256;
+
+    /**
+     * Longest UBX payload accepted.
+     */
+    private static final int MAX_PAYLOAD = 1024;
+
+    /**
+     * UBX framing, and the NAV-PVT message.
+     */
+    private static final int UBX_SYNC_1 = 0xb5, UBX_SYNC_2 = 0x62, UBX_OVERHEAD = 8;
+    private static final int NAV_CLASS = 0x01, NAV_PVT_ID = 0x07, NAV_PVT_LENGTH = 92;
+
+    /**
+     * Typical range error, in meters, times HDOP for the accuracy of epochs without GST.
+     */
+    private static final double RANGE_ERROR = 5.0;
+
+    private static final double KNOT_TO_METER_PER_SECOND = 1852.0 / 3600.0;
+    private static final long DAY_MILLIS = 86400000L;
+
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
+
+    private static final int MAX_FIELDS = 24;
+
+    private final Listener mListener;
+
+    /**
+     * Start of each field of the current sentence, plus one past the end of the last one.
+     */
+    private final int[] mFields = new int[MAX_FIELDS + 1];
+    private int mFieldCount;
+
+    /**
+     * NMEA epoch being merged: time of day in milliseconds (negative if none), and what was seen so far.
+     */
+    private long mEpochTime = -1;
+    private boolean mHasPosition, mHasGst, mHasRmc, mReported;
+    private double mLatitude, mLongitude, mAltitude, mHdop, mLatitudeError, mLongitudeError;
+    private float mSpeed, mBearing;
+
+    /**
+     * UTC midnight of the last RMC date, moved on to the next day when time of day wraps around, in milliseconds.
+     * Negative if none yet.
+     */
+    private long mDate = -1;
+
+    /**
+     * Counters.
+     */
+    private long mSentenceCount, mFrameCount, mErrorCount;
+
+    /**
+     * @param listener Receiver of parsed fixes, called from {@link #parse(ByteBuffer)}.
+     */
+    public GnssParser(Listener listener) {
+
+        mListener = listener;
+    }
+
+    /**
+     * Parse every complete sentence and frame from the position of the given buffer to its limit.
+     * <p>
+     * Bytes that are neither are skipped. The position is left at the start of a trailing incomplete sentence or
+     * frame, if any, so the buffer can be compacted and filled again: the usual read, flip, parse, compact loop.
+     *
+     * @param buffer Buffer with at least {@link #MIN_BUFFER_SIZE} capacity.
+     */
+    public void parse(ByteBuffer buffer) {
+
+        final int limit = buffer.limit();
+        int position = buffer.position();
+
+        while (position < limit) {
+
+            final int b = buffer.get(position) & 0xff;
+
+            if (b == '$') {
+
+                int end = indexOf(buffer, '\n', position, Math.min(limit, position + MAX_SENTENCE));
+
+                if (end < 0) {
+
+                    // Wait for the rest, unless too long to be a sentence
+                    if (limit - position < MAX_SENTENCE)
+                        break;
+
+                    mErrorCount++;
+                    position++;
+                    continue;
+                }
+
+                parseSentence(buffer, position, end);
+                position = end + 1;
+
+            } else if (b == UBX_SYNC_1) {
+
+                // Header: sync, class, id, length
+                if (limit - position < 6)
+                    break;
+
+                if ((buffer.get(position + 1) & 0xff) != UBX_SYNC_2) {
+
+                    position++;
+                    continue;
+                }
+
+                final int length = getU2(buffer, position + 4);
+
+                if (length > MAX_PAYLOAD) {
+
+                    mErrorCount++;
+                    position++;
+                    continue;
+                }
+
+                if (limit - position < length + UBX_OVERHEAD)
+                    break;
+
+                if (!parseFrame(buffer, position, length)) {
+
+                    mErrorCount++;
+                    position++;
+                    continue;
+                }
+
+                position += length + UBX_OVERHEAD;
+
+            } else {
+
+                position++;
+            }
+        }
+
+        buffer.position(position);
+    }
+
+    /**
+     * Report the NMEA epoch being merged, if not yet. E.g. at the end of a stream.
+     */
+    public void flush() {
+
+        reportEpoch();
+    }
+
+    /**
+     * @return Number of valid sentences parsed, of any type.
+     */
+    public long getSentenceCount() { return mSentenceCount; }
+
+    /**
+     * @return Number of valid UBX frames parsed, of any type.
+     */
+    public long getFrameCount() { return mFrameCount; }
+
+    /**
+     * @return Number of sentences and frames dropped for bad checksums or lengths.
+     */
+    public long getErrorCount() { return mErrorCount; }
+
+    // NMEA
+
+    /**
+     * @param start Index of the '$'.
+     * @param end Index of the terminating '\n'.
+     */
+    private void parseSentence(ByteBuffer buffer, int start, int end) {
+
+        if (end > start && buffer.get(end - 1) == '\r')
+            end--;
+
+        // Checksum, if any: XOR of everything between '$' and '*'
+        if (end - start >= 4 && buffer.get(end - 3) == '*') {
+
+            int checksum = 0;
+
+            for (int i = start + 1; i < end - 3; i++)
+                checksum ^= buffer.get(i);
+
+            if (checksum != (hexDigit(buffer.get(end - 2)) << 4 | hexDigit(buffer.get(end - 1)))) {
+
+                mErrorCount++;
+                return;
+            }
+
+            end -= 3;
+        }
+
+        mSentenceCount++;
+
+        // Split fields. Field 0 is the address, e.g. GPGGA
+        mFieldCount = 0;
+        mFields[mFieldCount++] = start + 1;
+
+        for (int i = start + 1; i < end && mFieldCount < MAX_FIELDS; i++) {
+
+            if (buffer.get(i) == ',')
+                mFields[mFieldCount++] = i + 1;
+        }
+
+        mFields[mFieldCount] = end + 1;
+
+        // Any talker, e.g. GP, GN or GL. Three letter sentence type at the end of the address
+        final int type = mFields[1] - 4;
+
+        if (mFieldCount < 2 || type < start + 1 || buffer.get(start + 1) == 'P')
+            return;
+
+        final byte t0 = buffer.get(type), t1 = buffer.get(type + 1), t2 = buffer.get(type + 2);
+
+        if (t0 == 'G' && t1 == 'G' && t2 == 'A')
+            parseGga(buffer);
+        else if (t0 == 'R' && t1 == 'M' && t2 == 'C')
+            parseRmc(buffer);
+        else if (t0 == 'G' && t1 == 'S' && t2 == 'T')
+            parseGst(buffer);
+        else
+            return;
+
+        // Report as soon as the epoch is complete
+        if (mHasPosition && mHasGst && mHasRmc)
+            reportEpoch();
+    }
+
+    /**
+     * GGA: time, latitude, N/S, longitude, E/W, quality, satellites, HDOP, altitude, M, geoid separation, M, ...
+     */
+    private void parseGga(ByteBuffer buffer) {
+
+        if (mFieldCount < 12 || !startEpoch(buffer))
+            return;
+
+        // Quality 0 is no fix
+        if (isEmpty(5) || buffer.get(mFields[6]) == '0' || isEmpty(6))
+            return;
+
+        final double latitude = parseCoordinate(buffer, 2, 3, 'S');
+        final double longitude = parseCoordinate(buffer, 4, 5, 'W');
+
+        if (Double.isNaN(latitude) || Double.isNaN(longitude))
+            return;
+
+        mHasPosition = true;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mHdop = parseDouble(buffer, 8);
+
+        // GGA altitude is above the geoid, Android's above the ellipsoid
+        final double separation = parseDouble(buffer, 11);
+        mAltitude = parseDouble(buffer, 9) + (Double.isNaN(separation) ? 0.0 : separation);
+    }
+
+    /**
+     * RMC: time, status, latitude, N/S, longitude, E/W, speed in knots, course, date, ...
+     */
+    private void parseRmc(ByteBuffer buffer) {
+
+        if (mFieldCount < 10 || !startEpoch(buffer))
+            return;
+
+        // Date as ddmmyy
+        if (mFields[10] - mFields[9] >= 7) {
+
+            final int date = mFields[9];
+            final int day = digits(buffer, date), month = digits(buffer, date + 2), year = digits(buffer, date + 4);
+
+            if (day >= 0 && month >= 0 && year >= 0)
+                mDate = daysFromCivil(year < 80 ? 2000 + year : 1900 + year, month, day) * DAY_MILLIS;
+        }
+
+        if (buffer.get(mFields[2]) != 'A')
+            return;
+
+        mHasRmc = true;
+        mSpeed = (float) (parseDouble(buffer, 7) * KNOT_TO_METER_PER_SECOND);
+        mBearing = (float) parseDouble(buffer, 8);
+    }
+
+    /**
+     * GST: time, RMS, semi-major, semi-minor, orientation, latitude error, longitude error, altitude error.
+     */
+    private void parseGst(ByteBuffer buffer) {
+
+        if (mFieldCount < 8 || !startEpoch(buffer))
+            return;
+
+        final double latitudeError = parseDouble(buffer, 6);
+        final double longitudeError = parseDouble(buffer, 7);
+
+        if (Double.isNaN(latitudeError) || Double.isNaN(longitudeError))
+            return;
+
+        mHasGst = true;
+        mLatitudeError = latitudeError;
+        mLongitudeError = longitudeError;
+    }
+
+    /**
+     * Parse the time in field 1 and, if it differs from the current epoch, report that one and start over.
+     *
+     * @return False if there is no valid time.
+     */
+    private boolean startEpoch(ByteBuffer buffer) {
+
+        final int start = mFields[1];
+
+        if (mFields[2] - start < 7)
+            return false;
+
+        final int hours = digits(buffer, start), minutes = digits(buffer, start + 2);
+        final double seconds = parseDouble(buffer, start + 4, mFields[2] - 1);
+
+        if (hours < 0 || minutes < 0 || Double.isNaN(seconds))
+            return false;
+
+        final long time = (hours * 60 + minutes) * 60000L + Math.round(seconds * 1000.0);
+
+        if (time != mEpochTime) {
+
+            reportEpoch();
+
+            // Past midnight, until the next RMC brings the new date
+            if (mDate >= 0 && mEpochTime >= 0 && time < mEpochTime - DAY_MILLIS / 2)
+                mDate += DAY_MILLIS;
+
+            mEpochTime = time;
+            mHasPosition = false;
+            mHasGst = false;
+            mHasRmc = false;
+            mReported = false;
+        }
+
+        return true;
+    }
+
+    private void reportEpoch() {
+
+        if (!mHasPosition || mReported)
+            return;
+
+        mReported = true;
+
+        final double accuracy = mHasGst
+                ? Math.sqrt(mLatitudeError * mLatitudeError + mLongitudeError * mLongitudeError)
+                : mHdop * RANGE_ERROR;
+
+        mListener.onFix(getTime(mEpochTime), mLatitude, mLongitude, mAltitude, (float) accuracy,
+                mHasRmc ? mSpeed : Float.NaN, mHasRmc ? mBearing : Float.NaN);
+    }
+
+    /**
+     * @return UTC time for the given time of day, on the date of the last RMC, or else on the nearest day.
+     */
+    private long getTime(long timeOfDay) {
+
+        if (mDate >= 0)
+            return mDate + timeOfDay;
+
+        final long now = System.currentTimeMillis();
+        final long time = now - now % DAY_MILLIS + timeOfDay;
+
+        if (time - now > DAY_MILLIS / 2)
+            return time - DAY_MILLIS;
+
+        if (now - time > DAY_MILLIS / 2)
+            return time + DAY_MILLIS;
+
+        return time;
+    }
+
+    /**
+     * Parse a coordinate as (d)ddmm.mmmm plus hemisphere.
+     */
+    private double parseCoordinate(ByteBuffer buffer, int field, int hemisphereField, char negative) {
+
+        final double value = parseDouble(buffer, field);
+
+        if (Double.isNaN(value) || isEmpty(hemisphereField))
+            return Double.NaN;
+
+        final double degrees = Math.floor(value / 100.0);
+        final double coordinate = degrees + (value - degrees * 100.0) / 60.0;
+
+        return buffer.get(mFields[hemisphereField]) == negative ? -coordinate : coordinate;
+    }
+
+    private boolean isEmpty(int field) {
+
+        return mFields[field + 1] - mFields[field] <= 1;
+    }
+
+    private double parseDouble(ByteBuffer buffer, int field) {
+
+        return parseDouble(buffer, mFields[field], mFields[field + 1] - 1);
+    }
+
+    /**
+     * Parse a decimal number from the given bytes, without allocating.
+     *
+     * @return NaN if empty or malformed.
+     */
+    private static double parseDouble(ByteBuffer buffer, int start, int end) {
+
+        if (start >= end)
+            return Double.NaN;
+
+        boolean negative = false;
+        int i = start;
+
+        if (buffer.get(i) == '-') {
+
+            negative = true;
+            i++;
+        }
+
+        long mantissa = 0;
+        int decimals = -1;
+        int digits = 0;
+
+        for (; i < end; i++) {
+
+            final byte c = buffer.get(i);
+
+            if (c == '.' && decimals < 0) {
+
+                decimals = 0;
+
+            } else if (c >= '0' && c <= '9') {
+
+                // Beyond 18 digits, the rest can't be represented anyway
+                if (digits++ < 18) {
+
+                    mantissa = mantissa * 10 + (c - '0');
+
+                    if (decimals >= 0)
+                        decimals++;
+                }
+
+            } else {
+
+                return Double.NaN;
+            }
+        }
+
+        if (digits == 0)
+            return Double.NaN;
+
+        final double value = decimals > 0 ? mantissa / POW10[decimals] : mantissa;
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return The two digit number at the given index, or -1.
+     */
+    private static int digits(ByteBuffer buffer, int index) {
+
+        final int d0 = buffer.get(index) - '0', d1 = buffer.get(index + 1) - '0';
+
+        return d0 >= 0 && d0 <= 9 && d1 >= 0 && d1 <= 9 ? d0 * 10 + d1 : -1;
+    }
+
+    private static int hexDigit(byte c) {
+
+        if (c >= '0' && c <= '9')
+            return c - '0';
+
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+
+        return -1;
+    }
+
+    private static int indexOf(ByteBuffer buffer, char c, int from, int to) {
+
+        for (int i = from; i < to; i++) {
+
+            if (buffer.get(i) == c)
+                return i;
+        }
+
+        return -1;
+    }
+
+    // UBX
+
+    /**
+     * @param start Index of the first sync byte. The whole frame is in the buffer.
+     * @return False if the checksum doesn't match.
+     */
+    private boolean parseFrame(ByteBuffer buffer, int start, int length) {
+
+        // 8-bit Fletcher over class, id, length and payload
+        int a = 0, b = 0;
+
+        for (int i = start + 2; i < start + 6 + length; i++) {
+
+            a = (a + (buffer.get(i) & 0xff)) & 0xff;
+            b = (b + a) & 0xff;
+        }
+
+        if (a != (buffer.get(start + 6 + length) & 0xff) || b != (buffer.get(start + 7 + length) & 0xff))
+            return false;
+
+        mFrameCount++;
+
+        if ((buffer.get(start + 2) & 0xff) == NAV_CLASS && (buffer.get(start + 3) & 0xff) == NAV_PVT_ID
+                && length == NAV_PVT_LENGTH) {
+
+            parseNavPvt(buffer, start + 6);
+        }
+
+        return true;
+    }
+
+    /**
+     * NAV-PVT payload, see the u-blox protocol specification.
+     */
+    private void parseNavPvt(ByteBuffer buffer, int payload) {
+
+        final int valid = buffer.get(payload + 11);
+        final int fixType = buffer.get(payload + 20);
+        final int flags = buffer.get(payload + 21);
+
+        // Valid date and time, 2D or 3D fix (possibly dead reckoning combined), and within accuracy masks
+        if ((valid & 0x03) != 0x03 || fixType < 2 || fixType > 4 || (flags & 0x01) == 0)
+            return;
+
+        final long days = daysFromCivil(
+                getU2(buffer, payload + 4), buffer.get(payload + 6) & 0xff, buffer.get(payload + 7) & 0xff);
+        final int seconds = ((buffer.get(payload + 8) & 0xff) * 60 + (buffer.get(payload + 9) & 0xff)) * 60
+                + (buffer.get(payload + 10) & 0xff);
+        final long time = days * DAY_MILLIS + seconds * 1000L + Math.round(getI4(buffer, payload + 16) / 1.0e6);
+
+        mListener.onFix(
+                time,
+                getI4(buffer, payload + 28) * 1.0e-7,
+                getI4(buffer, payload + 24) * 1.0e-7,
+                fixType >= 3 ? getI4(buffer, payload + 32) / 1000.0 : Double.NaN,
+                (getI4(buffer, payload + 40) & 0xffffffffL) / 1000.0f,
+                getI4(buffer, payload + 60) / 1000.0f,
+                getI4(buffer, payload + 64) * 1.0e-5f);
+    }
+
+    private static int getU2(ByteBuffer buffer, int index) {
+
+        return (buffer.get(index) & 0xff) | (buffer.get(index + 1) & 0xff) << 8;
+    }
+
+    private static int getI4(ByteBuffer buffer, int index) {
+
+        return (buffer.get(index) & 0xff) | (buffer.get(index + 1) & 0xff) << 8
+                | (buffer.get(index + 2) & 0xff) << 16 | (buffer.get(index + 3) & 0xff) << 24;
+    }
+
+    /**
+     * @return Days since January 1, 1970 of the given proleptic Gregorian date.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+
+        year -= month <= 2 ? 1 : 0;
+
+        final int era = (year >= 0 ? year : year - 399) / 400;
+        final int yearOfEra = year - era * 400;
+        final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * GridIndex
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import java.util.Arrays;
+
+/**
+ * Static spatial index of bounding boxes over a regular latitude/longitude grid.
+ * <p>
+ * The grid covers the union of all boxes, and each cell lists the items whose box overlaps it.
+ * Queries don't allocate, but use internal scratch state, so they must all be made from the same thread.
+ */
+class GridIndex {
+
+    /**
+     * Maximum number of cells per side, to bound memory when items are spread over a large area.
+     */
+    private static final int MAX_CELLS_PER_SIDE = 256;
+
+    /**
+     * Grid origin and cell size, in degrees.
+     */
+    private final double mMinLatitude, mMinLongitude, mCellSize;
+
+    /**
+     * Grid dimensions.
+     */
+    private final int mRows, mColumns;
+
+    /**
+     * Items overlapping each cell, row-major. Null for empty cells.
+     */
+    private final int[][] mCells;
+
+    /**
+     * Query stamp of each item, to report each item only once per query.
+     */
+    private final int[] mStamps;
+    private int mStamp;
+
+    /**
+     * Builds the index.
+     *
+     * @param bounds Bounding box of each item, as four consecutive values:
+     *               minimum latitude, minimum longitude, maximum latitude, maximum longitude.
+     * @param cellSize Desired cell size, in degrees. Grown if needed to honor the maximum grid size.
+     */
+    GridIndex(double[] bounds, double cellSize) {
+
+        final int count = bounds.length / 4;
+
+        // Union of all boxes
+        double minLatitude = Double.POSITIVE_INFINITY, minLongitude = Double.POSITIVE_INFINITY;
+        double maxLatitude = Double.NEGATIVE_INFINITY, maxLongitude = Double.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < count; i++) {
+
+            minLatitude = Math.min(minLatitude, bounds[4 * i]);
+            minLongitude = Math.min(minLongitude, bounds[4 * i + 1]);
+            maxLatitude = Math.max(maxLatitude, bounds[4 * i + 2]);
+            maxLongitude = Math.max(maxLongitude, bounds[4 * i + 3]);
+        }
+
+        if (count == 0)
+            minLatitude = minLongitude = maxLatitude = maxLongitude = 0.0;
+
+        final double extent = Math.max(maxLatitude - minLatitude, maxLongitude - minLongitude);
+
+        mMinLatitude = minLatitude;
+        mMinLongitude = minLongitude;
+        mCellSize = Math.max(cellSize, extent / MAX_CELLS_PER_SIDE);
+        mRows = row(maxLatitude) + 1;
+        mColumns = column(maxLongitude) + 1;
+
+        // First pass counts, second pass fills
+        int[] sizes = new int[mRows * mColumns];
+
+        for (int i = 0; i < count; i++)
+            for (int r = row(bounds[4 * i]); r <= row(bounds[4 * i + 2]); r++)
+                for (int c = column(bounds[4 * i + 1]); c <= column(bounds[4 * i + 3]); c++)
+                    sizes[r * mColumns + c]++;
+
+        mCells = new int[mRows * mColumns][];
+
+        for (int cell = 0; cell < mCells.length; cell++)
+            if (sizes[cell] > 0)
+                mCells[cell] = new int[sizes[cell]];
+
+        int[] fill = new int[mRows * mColumns];
+
+        for (int i = 0; i < count; i++)
+            for (int r = row(bounds[4 * i]); r <= row(bounds[4 * i + 2]); r++)
+                for (int c = column(bounds[4 * i + 1]); c <= column(bounds[4 * i + 3]); c++) {
+
+                    int cell = r * mColumns + c;
+                    mCells[cell][fill[cell]++] = i;
+                }
+
+        mStamps = new int[count];
+    }
+
+    /**
+     * Collects the items whose cells overlap the given box. May report items whose own box doesn't
+     * overlap the query, so callers must refine.
+     *
+     * @param minLatitude Box minimum latitude, in degrees.
+     * @param minLongitude Box minimum longitude, in degrees.
+     * @param maxLatitude Box maximum latitude, in degrees.
+     * @param maxLongitude Box maximum longitude, in degrees.
+     * @param items Destination array. Collection stops when full.
+     * @return Number of items collected.
+     */
+    int query(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude, int[] items) {
+
+        final int r0 = Math.max(row(minLatitude), 0), r1 = Math.min(row(maxLatitude), mRows - 1);
+        final int c0 = Math.max(column(minLongitude), 0), c1 = Math.min(column(maxLongitude), mColumns - 1);
+
+        // New stamp. On wrap around, stale stamps could match, so clear them
+        if (++mStamp == 0) {
+
+            Arrays.fill(mStamps, 0);
+            mStamp = 1;
+        }
+
+        int count = 0;
+
+        for (int r = r0; r <= r1; r++)
+            for (int c = c0; c <= c1; c++) {
+
+                int[] cell = mCells[r * mColumns + c];
+
+                if (cell == null)
+                    continue;
+
+                for (int item : cell) {
+
+                    if (mStamps[item] == mStamp)
+                        continue;
+
+                    if (count == items.length)
+                        return count;
+
+                    mStamps[item] = mStamp;
+                    items[count++] = item;
+                }
+            }
+
+        return count;
+    }
+
+    private int row(double latitude) { return (int) Math.floor((latitude - mMinLatitude) / mCellSize); }
+
+    private int column(double longitude) { return (int) Math.floor((longitude - mMinLongitude) / mCellSize); }
+}
@@ -0,0 +1,443 @@
+/*
+ * ImmTracker
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.METER_TO_DEG;
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.MODEL_CONSTANT_VELOCITY;
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.MODEL_MANEUVERING;
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.MODEL_STATIONARY;
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.TIME_STEP;
+
+/**
+ * Interacting multiple model filter tracking latitude and longitude.
+ * <p>
+ * Runs a bank of models side by side: stationary (velocity held at zero), constant velocity with low process noise,
+ * and maneuvering with high process noise. Models are mixed before each prediction according to how likely they
+ * are to switch, and weighted after each update by how well they explained the measurement. The combined state
+ * follows the constant velocity model on smooth stretches, snaps to zero velocity when stopped, and reacts fast on
+ * turns and acceleration.
+ * <p>
+ * All states live in fixed-size arrays, so steps never allocate. Covariances are symmetric, so each axis keeps
+ * three terms, same as {@link Tracker1D}.
+ */
+class ImmTracker {
+
+    static final int MODELS = 3;
+
+    private static final int AXES = 2;
+
+    /**
+     * Offsets of the state (position, velocity) and covariance (position, cross, velocity) of each axis.
+     */
+    private static final int STATE_SIZE = 2;
+    private static final int COVARIANCE_SIZE = 3;
+
+    /**
+     * Velocity kept by each model on each prediction.
+     */
+    private static final double[] VELOCITY_FACTOR = new double[MODELS];
+
+    /**
+     * Process noise standard deviation of each model, in meters per time step squared (in meters per time step
+     * for the stationary model, which only lets position wander).
+     */
+    private static final double[] PROCESS_NOISE = new double[MODELS];
+
+    /**
+     * Probability of switching from one model (row) to another (column) on each time step.
+     */
+    private static final double[] TRANSITION = new double[MODELS * MODELS];
+
+    /**
+     * Model probabilities on the first fix.
+     */
+    private static final double[] INITIAL_PROBABILITY = new double[MODELS];
+
+    static {
+
+        VELOCITY_FACTOR[MODEL_STATIONARY] = 0.0;
+        VELOCITY_FACTOR[MODEL_CONSTANT_VELOCITY] = 1.0;
+        VELOCITY_FACTOR[MODEL_MANEUVERING] = 1.0;
+
+        PROCESS_NOISE[MODEL_STATIONARY] = 0.5 * METER_TO_DEG;
+        PROCESS_NOISE[MODEL_CONSTANT_VELOCITY] = 1.0 * METER_TO_DEG;
+        PROCESS_NOISE[MODEL_MANEUVERING] = 10.0 * METER_TO_DEG;
+
+        setTransition(MODEL_STATIONARY, 0.90, 0.09, 0.01);
+        setTransition(MODEL_CONSTANT_VELOCITY, 0.05, 0.90, 0.05);
+        setTransition(MODEL_MANEUVERING, 0.01, 0.14, 0.85);
+
+        INITIAL_PROBABILITY[MODEL_STATIONARY] = 0.2;
+        INITIAL_PROBABILITY[MODEL_CONSTANT_VELOCITY] = 0.6;
+        INITIAL_PROBABILITY[MODEL_MANEUVERING] = 0.2;
+    }
+
+    /**
+     * Process noise covariance of each model.
+     */
+    private final double[] mQa = new double[MODELS], mQb = new double[MODELS], mQd = new double[MODELS];
+
+    /**
+     * Per model states and covariances, and the mixed ones computed before each prediction. Swapped after mixing.
+     */
+    private double[] mX = new double[MODELS * AXES * STATE_SIZE];
+    private double[] mP = new double[MODELS * AXES * COVARIANCE_SIZE];
+    private double[] mMixedX = new double[MODELS * AXES * STATE_SIZE];
+    private double[] mMixedP = new double[MODELS * AXES * COVARIANCE_SIZE];
+
+    /**
+     * Model probabilities.
+     */
+    private final double[] mProbability = new double[MODELS];
+
+    /**
+     * Scratch: mixing weights, predicted probabilities, and squared normalized innovations and determinants of their
+     * covariances.
+     */
+    private final double[] mWeight = new double[MODELS * MODELS];
+    private final double[] mPredictedProbability = new double[MODELS];
+    private final double[] mDistance = new double[MODELS];
+    private final double[] mDeterminant = new double[MODELS];
+
+    ImmTracker() {
+
+        final double t = TIME_STEP;
+
+        for (int m = 0; m < MODELS; m++) {
+
+            double n2 = PROCESS_NOISE[m] * PROCESS_NOISE[m];
+
+            if (VELOCITY_FACTOR[m] == 0.0) {
+
+                // Random walk on position only
+                mQa[m] = n2;
+
+            } else {
+
+                // Same as Tracker1D
+                mQa[m] = n2 * t * t * t * t / 4.0;
+                mQb[m] = n2 * t * t * t / 2.0;
+                mQd[m] = n2 * t * t;
+            }
+        }
+    }
+
+    /**
+     * Reset every model to the state of the given trackers.
+     */
+    void setState(Tracker1D latitude, Tracker1D longitude) {
+
+        for (int m = 0; m < MODELS; m++) {
+
+            setState(m, 0, latitude);
+            setState(m, 1, longitude);
+            mProbability[m] = INITIAL_PROBABILITY[m];
+        }
+    }
+
+    /**
+     * Write the combined state into the given trackers.
+     */
+    void getState(Tracker1D latitude, Tracker1D longitude) {
+
+        getState(0, latitude);
+        getState(1, longitude);
+    }
+
+    /**
+     * Mix the models and predict one time step.
+     */
+    void predict() {
+
+        mix();
+
+        final double t = TIME_STEP;
+
+        for (int m = 0; m < MODELS; m++) {
+
+            final double f = VELOCITY_FACTOR[m];
+            final double ft = f * t;
+
+            for (int axis = 0; axis < AXES; axis++) {
+
+                int x = (m * AXES + axis) * STATE_SIZE;
+                int p = (m * AXES + axis) * COVARIANCE_SIZE;
+
+                double Pa = mP[p], Pb = mP[p + 1], Pd = mP[p + 2];
+
+                // x = F.x, with F = [1 f.t; 0 f]
+                mX[x] += ft * mX[x + 1];
+                mX[x + 1] *= f;
+
+                // P = F.P.F' + Q
+                mP[p] = Pa + ft * (2.0 * Pb + ft * Pd) + mQa[m];
+                mP[p + 1] = f * (Pb + ft * Pd) + mQb[m];
+                mP[p + 2] = f * f * Pd + mQd[m];
+            }
+        }
+    }
+
+    /**
+     * Update every model with the given measurement.
+     *
+     * @param weigh Whether to update model probabilities too. Should be false for pseudo-measurements derived from
+     *              the estimate itself, which would otherwise count twice.
+     */
+    void update(double latitude, double latitudeNoise, double longitude, double longitudeNoise, boolean weigh) {
+
+        final double latitudeR = latitudeNoise * latitudeNoise;
+        final double longitudeR = longitudeNoise * longitudeNoise;
+        double minDistance = Double.POSITIVE_INFINITY;
+
+        for (int m = 0; m < MODELS; m++) {
+
+            // Innovation covariance, before it changes
+            mDeterminant[m] = (mP[(m * AXES) * COVARIANCE_SIZE] + latitudeR)
+                    * (mP[(m * AXES + 1) * COVARIANCE_SIZE] + longitudeR);
+
+            mDistance[m] = update(m, 0, latitude, latitudeR) + update(m, 1, longitude, longitudeR);
+            minDistance = Math.min(minDistance, mDistance[m]);
+        }
+
+        if (!weigh)
+            return;
+
+        // L = exp(-d/2) / sqrt(det(2.pi.S)), mu = c.L / sum(c.L). Relative to the closest model so nothing
+        // underflows, constant factors cancel out.
+        double sum = 0.0;
+
+        for (int m = 0; m < MODELS; m++) {
+
+            mProbability[m] *= Math.exp(-0.5 * (mDistance[m] - minDistance)) / Math.sqrt(mDeterminant[m]);
+            sum += mProbability[m];
+        }
+
+        for (int m = 0; m < MODELS; m++)
+            mProbability[m] /= sum;
+    }
+
+    /**
+     * Update every model with a zero-velocity pseudo-measurement. Model probabilities are left untouched.
+     */
+    void updateZeroVelocity(double latitudeNoise, double longitudeNoise) {
+
+        for (int m = 0; m < MODELS; m++) {
+
+            updateVelocity(m, 0, latitudeNoise * latitudeNoise);
+            updateVelocity(m, 1, longitudeNoise * longitudeNoise);
+        }
+    }
+
+    /**
+     * @param model One of the LocationFusion model constants.
+     * @return Probability of the given model.
+     */
+    double getProbability(int model) { return mProbability[model]; }
+
+    private static void setTransition(int from, double stationary, double constantVelocity, double maneuvering) {
+
+        TRANSITION[from * MODELS + MODEL_STATIONARY] = stationary;
+        TRANSITION[from * MODELS + MODEL_CONSTANT_VELOCITY] = constantVelocity;
+        TRANSITION[from * MODELS + MODEL_MANEUVERING] = maneuvering;
+    }
+
+    private void setState(int model, int axis, Tracker1D tracker) {
+
+        int x = (model * AXES + axis) * STATE_SIZE;
+        int p = (model * AXES + axis) * COVARIANCE_SIZE;
+
+        mX[x] = tracker.getPosition();
+        mX[x + 1] = tracker.getVelocity();
+        mP[p] = tracker.getPositionVariance();
+        mP[p + 1] = tracker.getCovariance();
+        mP[p + 2] = tracker.getVelocityVariance();
+    }
+
+    /**
+     * Moment-match the models into one state: x = sum(mu.x), P = sum(mu.(P + dx.dx')).
+     */
+    private void getState(int axis, Tracker1D tracker) {
+
+        double position = 0.0, velocity = 0.0;
+
+        for (int m = 0; m < MODELS; m++) {
+
+            int x = (m * AXES + axis) * STATE_SIZE;
+
+            position += mProbability[m] * mX[x];
+            velocity += mProbability[m] * mX[x + 1];
+        }
+
+        double Pa = 0.0, Pb = 0.0, Pd = 0.0;
+
+        for (int m = 0; m < MODELS; m++) {
+
+            int x = (m * AXES + axis) * STATE_SIZE;
+            int p = (m * AXES + axis) * COVARIANCE_SIZE;
+
+            double dp = mX[x] - position;
+            double dv = mX[x + 1] - velocity;
+
+            Pa += mProbability[m] * (mP[p] + dp * dp);
+            Pb += mProbability[m] * (mP[p + 1] + dp * dv);
+            Pd += mProbability[m] * (mP[p + 2] + dv * dv);
+        }
+
+        tracker.setState(position, velocity, Pa, Pb, Pd);
+    }
+
+    /**
+     * Mix the models: each one restarts from a blend of all of them, weighted by how likely it was to come from
+     * each. Model probabilities become the predicted ones.
+     */
+    private void mix() {
+
+        // c(j) = sum(T(i,j).mu(i)), w(i,j) = T(i,j).mu(i) / c(j)
+        for (int j = 0; j < MODELS; j++) {
+
+            double c = 0.0;
+
+            for (int i = 0; i < MODELS; i++)
+                c += TRANSITION[i * MODELS + j] * mProbability[i];
+
+            double ci = 1.0 / c;
+
+            for (int i = 0; i < MODELS; i++)
+                mWeight[i * MODELS + j] = TRANSITION[i * MODELS + j] * mProbability[i] * ci;
+
+            mPredictedProbability[j] = c;
+        }
+
+        for (int axis = 0; axis < AXES; axis++) {
+
+            // Spreads are taken relative to the first model, so they stay small and can be summed in one pass:
+            // sum(w.(x - x0).(x - x0)') = sum(w.d.d') - m.m', with d = x - r, m = x0 - r
+            final int x0 = axis * STATE_SIZE;
+            final double referencePosition = mX[x0], referenceVelocity = mX[x0 + 1];
+
+            for (int j = 0; j < MODELS; j++) {
+
+                double position = 0.0, velocity = 0.0;
+                double Pa = 0.0, Pb = 0.0, Pd = 0.0;
+
+                for (int i = 0; i < MODELS; i++) {
+
+                    int xi = (i * AXES + axis) * STATE_SIZE;
+                    int pi = (i * AXES + axis) * COVARIANCE_SIZE;
+                    double w = mWeight[i * MODELS + j];
+
+                    double dp = mX[xi] - referencePosition;
+                    double dv = mX[xi + 1] - referenceVelocity;
+
+                    position += w * dp;
+                    velocity += w * dv;
+                    Pa += w * (mP[pi] + dp * dp);
+                    Pb += w * (mP[pi + 1] + dp * dv);
+                    Pd += w * (mP[pi + 2] + dv * dv);
+                }
+
+                int xj = (j * AXES + axis) * STATE_SIZE;
+                int pj = (j * AXES + axis) * COVARIANCE_SIZE;
+
+                mMixedX[xj] = referencePosition + position;
+                mMixedX[xj + 1] = referenceVelocity + velocity;
+                mMixedP[pj] = Pa - position * position;
+                mMixedP[pj + 1] = Pb - position * velocity;
+                mMixedP[pj + 2] = Pd - velocity * velocity;
+            }
+        }
+
+        // Swap
+        double[] x = mX;
+        mX = mMixedX;
+        mMixedX = x;
+
+        double[] p = mP;
+        mP = mMixedP;
+        mMixedP = p;
+
+        System.arraycopy(mPredictedProbability, 0, mProbability, 0, MODELS);
+    }
+
+    /**
+     * Kalman update of one model on one axis, same as {@link Tracker1D#update(double, double)}.
+     *
+     * @return Squared normalized innovation, y.S^(-1).y.
+     */
+    private double update(int model, int axis, double position, double r) {
+
+        int x = (model * AXES + axis) * STATE_SIZE;
+        int p = (model * AXES + axis) * COVARIANCE_SIZE;
+
+        double Pa = mP[p], Pb = mP[p + 1], Pd = mP[p + 2];
+
+        // y = z - H.x, S = H.P.H' + R
+        double y = position - mX[x];
+        double s = Pa + r;
+
+        // K = P.H'.S^(-1)
+        double Ka = Pa / s;
+        double Kb = Pb / s;
+
+        // x = x + K.y
+        mX[x] += Ka * y;
+        mX[x + 1] += Kb * y;
+
+        // P = P - K.(H.P)
+        mP[p] = Pa - Ka * Pa;
+        mP[p + 1] = Pb - Ka * Pb;
+        mP[p + 2] = Pd - Kb * Pb;
+
+        return y * y / s;
+    }
+
+    /**
+     * Zero-velocity update of one model on one axis, same as {@link Tracker1D#updateVelocity(double, double)}.
+     */
+    private void updateVelocity(int model, int axis, double r) {
+
+        int x = (model * AXES + axis) * STATE_SIZE;
+        int p = (model * AXES + axis) * COVARIANCE_SIZE;
+
+        double Pa = mP[p], Pb = mP[p + 1], Pd = mP[p + 2];
+
+        // y = 0 - H.x, S = H.P.H' + R, with H = [0 1]
+        double y = -mX[x + 1];
+        double s = Pd + r;
+
+        // K = P.H'.S^(-1)
+        double Ka = Pb / s;
+        double Kb = Pd / s;
+
+        // x = x + K.y
+        mX[x] += Ka * y;
+        mX[x + 1] += Kb * y;
+
+        // P = P - K.(H.P)
+        mP[p] = Pa - Ka * Pb;
+        mP[p + 1] = Pb - Ka * Pd;
+        mP[p + 2] = Pd - Kb * Pd;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * KalmanEstimate
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+/**
+ * Snapshot of the full filter state: position, velocity and covariance for each dimension, and the time
+ * the snapshot was taken.
+ * <p>
+ * Meant to be allocated once and reused for every query, see
+ * {@link KalmanLocationManager#getEstimate(android.location.LocationListener, KalmanEstimate) getEstimate}.
+ * <p>
+ * Latitude and longitude are in degrees, altitude in meters. Velocities are per second.
+ */
+public class KalmanEstimate {
+
+    /**
+     * Dimension indices.
+     */
+    public static final int LATITUDE = 0, LONGITUDE = 1, ALTITUDE = 2;
+
+    /**
+     * Offsets within each dimension.
+     */
+    private static final int POSITION = 0, VELOCITY = 1, POSITION_VARIANCE = 2, COVARIANCE = 3, VELOCITY_VARIANCE = 4;
+    private static final int AXIS_SIZE = 5;
+
+    /**
+     * Slots after the three dimensions.
+     */
+    private static final int ACCURACY = 3 * AXIS_SIZE;
+    private static final int HAS_ALTITUDE = ACCURACY + 1;
+    private static final int TIME_NANOS = HAS_ALTITUDE + 1;
+    private static final int MODEL_PROBABILITY = TIME_NANOS + 1;
+    private static final int RESET_COUNT = MODEL_PROBABILITY + ImmTracker.MODELS;
+    private static final int REJECTED_FIX_COUNT = RESET_COUNT + 1;
+
+    /**
+     * Total number of slots.
+     */
+    static final int SIZE = REJECTED_FIX_COUNT + 1;
+
+    /**
+     * Raw slots. Doubles are stored as their long bits, so the whole state can go through a {@link SeqLock}.
+     */
+    final long[] mSlots = new long[SIZE];
+
+    /**
+     * Noise of a correction applied by a {@link FilterStage}, in meters. NaN if there is none. Not published.
+     */
+    private double mCorrectionNoise = Double.NaN;
+
+    /**
+     * @param axis One of {@link #LATITUDE}, {@link #LONGITUDE} or {@link #ALTITUDE}.
+     * @return Estimated position.
+     */
+    public double getPosition(int axis) { return get(axis * AXIS_SIZE + POSITION); }
+
+    /**
+     * @param axis One of {@link #LATITUDE}, {@link #LONGITUDE} or {@link #ALTITUDE}.
+     * @return Estimated velocity, per second.
+     */
+    public double getVelocity(int axis) { return get(axis * AXIS_SIZE + VELOCITY); }
+
+    /**
+     * @param axis One of {@link #LATITUDE}, {@link #LONGITUDE} or {@link #ALTITUDE}.
+     * @return Variance of the estimated position.
+     */
+    public double getPositionVariance(int axis) { return get(axis * AXIS_SIZE + POSITION_VARIANCE); }
+
+    /**
+     * @param axis One of {@link #LATITUDE}, {@link #LONGITUDE} or {@link #ALTITUDE}.
+     * @return Covariance between estimated position and velocity, per second.
+     */
+    public double getCovariance(int axis) { return get(axis * AXIS_SIZE + COVARIANCE); }
+
+    /**
+     * @param axis One of {@link #LATITUDE}, {@link #LONGITUDE} or {@link #ALTITUDE}.
+     * @return Variance of the estimated velocity, per second squared.
+     */
+    public double getVelocityVariance(int axis) { return get(axis * AXIS_SIZE + VELOCITY_VARIANCE); }
+
+    /**
+     * @return Estimated latitude, in degrees.
+     */
+    public double getLatitude() { return getPosition(LATITUDE); }
+
+    /**
+     * @return Estimated longitude, in degrees.
+     */
+    public double getLongitude() { return getPosition(LONGITUDE); }
+
+    /**
+     * @return Estimated altitude, in meters. Only meaningful if {@link #hasAltitude()}.
+     */
+    public double getAltitude() { return getPosition(ALTITUDE); }
+
+    /**
+     * @return True if the altitude dimension is being tracked.
+     */
+    public boolean hasAltitude() { return mSlots[HAS_ALTITUDE] != 0; }
+
+    /**
+     * @return Accuracy, in meters. Same value as reported by the predicted Location objects.
+     */
+    public float getAccuracy() { return (float) get(ACCURACY); }
+
+    /**
+     * @return Time this snapshot was taken, in the {@link System#nanoTime()} time base.
+     */
+    public long getTimeNanos() { return mSlots[TIME_NANOS]; }
+
+    /**
+     * @param model One of {@link LocationFusion#MODEL_STATIONARY}, {@link LocationFusion#MODEL_CONSTANT_VELOCITY}
+     *              or {@link LocationFusion#MODEL_MANEUVERING}.
+     * @return Probability of the given motion model, see
+     *         {@link KalmanLocationManager#setMultipleModels(boolean) setMultipleModels}.
+     */
+    public double getModelProbability(int model) { return get(MODEL_PROBABILITY + model); }
+
+    /**
+     * @return Number of times the filter started over since location updates were requested, see
+     *         {@link KalmanLocationManager#EXTRA_RESET_REASON}.
+     */
+    public long getResetCount() { return mSlots[RESET_COUNT]; }
+
+    /**
+     * @return Number of fixes rejected for being inconsistent with the estimate.
+     */
+    public long getRejectedFixCount() { return mSlots[REJECTED_FIX_COUNT]; }
+
+    /**
+     * Extrapolate this estimate to the given time, using the estimated velocity of each dimension.
+     * <p>
+     * Position covariance grows accordingly, and so does the accuracy, but no process noise is added, since the
+     * filter will account for it on its next prediction. Cheap enough to be called on every rendered frame, e.g.
+     * with the frame time of a {@link android.view.Choreographer.FrameCallback Choreographer.FrameCallback}.
+     *
+     * @param timeNanos Target time, in the {@link System#nanoTime()} time base.
+     */
+    public void extrapolate(long timeNanos) {
+
+        final double dt = (timeNanos - getTimeNanos()) / 1.0e9;
+        final double dt2 = dt * dt;
+
+        for (int axis = LATITUDE; axis <= ALTITUDE; axis++) {
+
+            int offset = axis * AXIS_SIZE;
+
+            double velocity = get(offset + VELOCITY);
+            double covariance = get(offset + COVARIANCE);
+            double velocityVariance = get(offset + VELOCITY_VARIANCE);
+
+            // x = F.x
+            set(offset + POSITION, get(offset + POSITION) + velocity * dt);
+
+            // P = F.P.F'
+            set(offset + POSITION_VARIANCE,
+                    get(offset + POSITION_VARIANCE) + 2.0 * dt * covariance + dt2 * velocityVariance);
+            set(offset + COVARIANCE, covariance + dt * velocityVariance);
+
+            // Accuracy is taken from latitude, as in the filter. Grow it by the same position variance, in meters
+            if (axis == LATITUDE) {
+
+                double growth = (2.0 * dt * covariance + dt2 * velocityVariance)
+                        * LocationFusion.DEG_TO_METER * LocationFusion.DEG_TO_METER;
+                double accuracy = get(ACCURACY);
+
+                set(ACCURACY, Math.sqrt(accuracy * accuracy + Math.max(growth, 0.0)));
+            }
+        }
+
+        setTimeNanos(timeNanos);
+    }
+
+    /**
+     * Replace the estimated horizontal position, e.g. with a position snapped to a road.
+     * <p>
+     * Only meaningful from {@link FilterStage#onEstimate(KalmanEstimate)}: the new position is delivered to the
+     * listener, and fed back into the filter as a pseudo-measurement with the given noise.
+     *
+     * @param latitude Corrected latitude, in degrees.
+     * @param longitude Corrected longitude, in degrees.
+     * @param noise Standard deviation of the correction, in meters.
+     */
+    public void correct(double latitude, double longitude, double noise) {
+
+        set(LATITUDE * AXIS_SIZE + POSITION, latitude);
+        set(LONGITUDE * AXIS_SIZE + POSITION, longitude);
+        mCorrectionNoise = noise;
+    }
+
+    boolean hasCorrection() { return !Double.isNaN(mCorrectionNoise); }
+
+    double getCorrectionNoise() { return mCorrectionNoise; }
+
+    void clearCorrection() { mCorrectionNoise = Double.NaN; }
+
+    /**
+     * Copy the state of a tracker into the given dimension.
+     *
+     * @param axis One of {@link #LATITUDE}, {@link #LONGITUDE} or {@link #ALTITUDE}.
+     * @param tracker Tracker for that dimension.
+     * @param timeStep Duration of one tracker time step, in seconds.
+     */
+    void setAxis(int axis, Tracker1D tracker, double timeStep) {
+
+        setAxis(axis,
+                tracker.getPosition(),
+                tracker.getVelocity() / timeStep,
+                tracker.getPositionVariance(),
+                tracker.getCovariance() / timeStep,
+                tracker.getVelocityVariance() / (timeStep * timeStep));
+    }
+
+    /**
+     * Set the state of the given dimension.
+     *
+     * @param axis One of {@link #LATITUDE}, {@link #LONGITUDE} or {@link #ALTITUDE}.
+     * @param position Position.
+     * @param velocity Velocity, per second.
+     * @param positionVariance Variance of the position.
+     * @param covariance Covariance between position and velocity, per second.
+     * @param velocityVariance Variance of the velocity, per second squared.
+     */
+    void setAxis(
+            int axis, double position, double velocity, double positionVariance, double covariance,
+            double velocityVariance)
+    {
+        int offset = axis * AXIS_SIZE;
+
+        set(offset + POSITION, position);
+        set(offset + VELOCITY, velocity);
+        set(offset + POSITION_VARIANCE, positionVariance);
+        set(offset + COVARIANCE, covariance);
+        set(offset + VELOCITY_VARIANCE, velocityVariance);
+    }
+
+    void setHasAltitude(boolean hasAltitude) { mSlots[HAS_ALTITUDE] = hasAltitude ? 1 : 0; }
+
+    void setAccuracy(double accuracy) { set(ACCURACY, accuracy); }
+
+    void setTimeNanos(long timeNanos) { mSlots[TIME_NANOS] = timeNanos; }
+
+    void setModelProbability(int model, double probability) { set(MODEL_PROBABILITY + model, probability); }
+
+    void setResetCount(long count) { mSlots[RESET_COUNT] = count; }
+
+    void setRejectedFixCount(long count) { mSlots[REJECTED_FIX_COUNT] = count; }
+
+    private double get(int slot) { return Double.longBitsToDouble(mSlots[slot]); }
+
+    private void set(int slot, double value) { mSlots[slot] = Double.doubleToRawLongBits(value); }
+}
@@ -25,11 +25,20 @@
 package com.villoren.android.kalmanlocationmanager.lib;
 
 import android.content.Context;
+import android.location.Location;
 import android.location.LocationListener;
+import android.location.LocationManager;
 import android.util.Log;
 
-import java.util.HashMap;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Provides a means of requesting location updates.
@@ -40,14 +49,42 @@ public class KalmanLocationManager {
 
     /**
      * Specifies which of the native location providers to use, or a combination of them.
+     * <p>
+     * {@link #PASSIVE} only receives the fixes other apps request, at no extra power cost.
      */
-    public enum UseProvider { GPS, NET, GPS_AND_NET }
+    public enum UseProvider { GPS, NET, GPS_AND_NET, PASSIVE }
 
     /**
      * Provider string assigned to predicted Location objects.
      */
     public static final String KALMAN_PROVIDER = "kalman";
 
+    /**
+     * Provider string suggested for the fixes of an external receiver, see
+     * {@link #addGnssInput(LocationListener, ReadableByteChannel, String) addGnssInput}.
+     */
+    public static final String EXTERNAL_GNSS_PROVIDER = "externalGnss";
+
+    /**
+     * Key of the reason string in the extras of the status updates sent for {@link #KALMAN_PROVIDER} when the filter
+     * starts over: {@link android.location.LocationProvider#TEMPORARILY_UNAVAILABLE TEMPORARILY_UNAVAILABLE} on
+     * reset, and {@link android.location.LocationProvider#AVAILABLE AVAILABLE} once seeded again from a fix.
+     * Estimates stop in between.
+     */
+    public static final String EXTRA_RESET_REASON = "resetReason";
+
+    /**
+     * Key of the number of resets so far, a long, in the same extras.
+     */
+    public static final String EXTRA_RESET_COUNT = "resetCount";
+
+    /**
+     * Reset reasons: the state went non-finite or its covariance invalid; fixes kept falling too far from the
+     * estimate; the device slept so long without predicting that the state is stale.
+     */
+    public static final String RESET_INVALID_STATE = "invalidState", RESET_INCONSISTENT_FIXES = "inconsistentFixes",
+            RESET_SLEEP = "sleep";
+
     /**
      * Logger tag.
      */
@@ -60,9 +97,37 @@ public class KalmanLocationManager {
 
     /**
      * Map that associates provided LocationListeners with created LooperThreads.
+     * <p>
+     * Concurrent, since {@link #getEstimate(LocationListener, KalmanEstimate)} may be called from any thread.
      */
     private final Map<LocationListener, LooperThread> mListener2Thread;
 
+    /**
+     * Persistent filter state for warm starts. Null if disabled.
+     */
+    private StateStore mStateStore;
+
+    /**
+     * Factories of the stages run by every filter thread on each prediction. Copy-on-write, since they are iterated
+     * on those threads.
+     */
+    private final List<FilterStage.Factory> mFilterStageFactories;
+
+    /**
+     * Whether new filter threads track horizontal motion with multiple models.
+     */
+    private boolean mMultipleModels;
+
+    /**
+     * Whether new filter threads detect when the device stands still, and with the accelerometer.
+     */
+    private boolean mStationaryDetection, mUseAccelerometer;
+
+    /**
+     * Noise settings by provider name. Concurrent, since they are read by the filter threads.
+     */
+    private final Map<String, ProviderNoise> mProviderNoise;
+
     /**
      * Constructor.
      *
@@ -71,7 +136,120 @@ public class KalmanLocationManager {
     public KalmanLocationManager(Context context) {
 
         mContext = context;
-        mListener2Thread = new HashMap<LocationListener, LooperThread>();
+        mListener2Thread = new ConcurrentHashMap<LocationListener, LooperThread>();
+        mFilterStageFactories = new CopyOnWriteArrayList<FilterStage.Factory>();
+        mProviderNoise = new ConcurrentHashMap<String, ProviderNoise>();
+
+        if (Tracing.ENABLED)
+            Tracing.installBackend(new AndroidTraceBackend());
+    }
+
+    /**
+     * Enables or disables warm starts. Disabled by default.
+     * <p>
+     * When enabled, the filter state is saved on {@link #removeUpdates(LocationListener)}, and restored on the next
+     * call to {@link #requestLocationUpdates(UseProvider, long, long, long, LocationListener, boolean)
+     * requestLocationUpdates}, with its covariance inflated for the elapsed time. A first, low-confidence estimate
+     * is then delivered right away, instead of waiting for the first provider reading.
+     * <p>
+     * Only affects listeners registered after this call.
+     *
+     * @param maxAge Maximum age of a saved state to be restored, in milliseconds. 0 disables warm starts.
+     */
+    public void setWarmStart(long maxAge) {
+
+        mStateStore = maxAge > 0 ? new StateStore(mContext, maxAge) : null;
+    }
+
+    /**
+     * Enables or disables multiple motion models. Disabled by default.
+     * <p>
+     * A single constant velocity model either lags on turns and acceleration, or jitters when stopped, depending on
+     * its process noise. When enabled, latitude and longitude are tracked by a bank of models (stationary, constant
+     * velocity and maneuvering) mixed on each step, and their probabilities are available through
+     * {@link KalmanEstimate#getModelProbability(int)}.
+     * <p>
+     * Only affects listeners registered after this call.
+     *
+     * @param enabled Whether to use multiple models.
+     */
+    public void setMultipleModels(boolean enabled) {
+
+        mMultipleModels = enabled;
+    }
+
+    /**
+     * Enables or disables stationary detection. Disabled by default.
+     * <p>
+     * When enabled, the device is deemed stationary once a few fixes in a row fall within the expected scatter
+     * around the estimate, and the estimated speed is close to zero. While stationary, predictions stop, fixes are
+     * fused with zero-velocity pseudo-measurements, and the published position is held: the listener receives a
+     * single estimate (with zero speed) on becoming stationary, and estimates resume as soon as a fix falls out of
+     * the expected scatter.
+     * <p>
+     * Only affects listeners registered after this call.
+     *
+     * @param enabled Whether to detect stationary periods.
+     * @param useAccelerometer Also require a steady accelerometer to become stationary, and resume as soon as it
+     *                         shakes. Ignored if the device has no accelerometer.
+     */
+    public void setStationaryDetection(boolean enabled, boolean useAccelerometer) {
+
+        mStationaryDetection = enabled;
+        mUseAccelerometer = useAccelerometer;
+    }
+
+    /**
+     * Sets how much to trust the fixes of the given provider. Affects all listeners, right away.
+     * <p>
+     * Fixes are fused with their reported accuracy multiplied by accuracyScale, and never below minimumAccuracy.
+     * By default, reported accuracies are used as is, but never below one meter. Settings apply to the provider
+     * that produced each fix, so fixes received through {@link UseProvider#PASSIVE UseProvider.PASSIVE} are
+     * treated according to their origin.
+     *
+     * @param provider Provider name, such as {@link LocationManager#GPS_PROVIDER}.
+     * @param accuracyScale Factor applied to reported accuracies. Greater than 1 to trust the provider less.
+     * @param minimumAccuracy Minimum accuracy, in meters.
+     */
+    public void setProviderNoise(String provider, float accuracyScale, float minimumAccuracy) {
+
+        if (provider == null)
+            throw new IllegalArgumentException("provider can't be null");
+
+        if (!(accuracyScale > 0.0f) || !(minimumAccuracy > 0.0f))
+            throw new IllegalArgumentException("accuracyScale and minimumAccuracy must be positive");
+
+        mProviderNoise.put(provider, new ProviderNoise(accuracyScale, minimumAccuracy));
+    }
+
+    /**
+     * Adds a stage to be run on each prediction, before it is delivered.
+     * <p>
+     * Every filter thread creates its own stage from the given factory, right before running it for the first time,
+     * so a stage only ever sees the estimates of one listener, and of one
+     * {@link #requestLocationUpdates(UseProvider, long, long, long, LocationListener, boolean) requestLocationUpdates}
+     * session. Stages are run on the filter thread, in the order their factories were added. Factories are kept
+     * across {@link #removeUpdates(LocationListener) removeUpdates} calls.
+     *
+     * @param factory Factory of the stage to add.
+     */
+    public void addFilterStage(FilterStage.Factory factory) {
+
+        if (factory == null)
+            throw new IllegalArgumentException("factory can't be null");
+
+        mFilterStageFactories.add(factory);
+    }
+
+    /**
+     * Removes a stage previously added with {@link #addFilterStage(FilterStage.Factory)}. Running filter threads
+     * drop their stage from it on their next prediction.
+     *
+     * @param factory Factory of the stage to remove.
+     */
+    public void removeFilterStage(FilterStage.Factory factory) {
+
+        mFilterStageFactories.remove(factory);
     }
 
     /**
@@ -86,9 +264,12 @@ public class KalmanLocationManager {
      *
      * @param minTimeGpsProvider Minimum time interval between GPS readings, in milliseconds.
      *                           If {@link UseProvider#NET UseProvider.NET} was set, this value is ignored.
+     *                           If {@link UseProvider#PASSIVE UseProvider.PASSIVE} was set, this value applies to
+     *                           passive readings.
      *
      * @param minTimeNetProvider Minimum time interval between Network readings, in milliseconds.
-     *                           If {@link UseProvider#GPS UseProvider.GPS} was set, this value is ignored.
+     *                           If {@link UseProvider#GPS UseProvider.GPS} or
+     *                           {@link UseProvider#PASSIVE UseProvider.PASSIVE} was set, this value is ignored.
      *
      * @param listener A {@link android.location.LocationListener LocationListener} whose
      *                 {@link android.location.LocationListener#onLocationChanged(android.location.Location) onLocationChanged(Location)}
@@ -107,41 +288,186 @@ public class KalmanLocationManager {
             LocationListener listener,
             boolean forwardProviderReadings)
     {
-        // Validate arguments
-        if (useProvider == null)
-            throw new IllegalArgumentException("useProvider can't be null");
+        requestLocationUpdates(
+                getProviders(useProvider, minTimeGpsProvider, minTimeNetProvider), minTimeFilter, listener,
+                forwardProviderReadings);
+    }
 
+    /**
+     * Register for {@link android.location.Location Location} estimates from any combination of location providers,
+     * using the given LocationListener callback.
+     * <p>
+     * Any provider name is accepted, such as {@link LocationManager#PASSIVE_PROVIDER} to ride on other apps' fixes
+     * along with (or instead of) requesting our own. Providers not available on the device are ignored. The same
+     * fix arriving through several providers is only fused once.
+     *
+     * @param providers Provider names, and the minimum time interval between their readings, in milliseconds.
+     *
+     * @param minTimeFilter Minimum time interval between location estimates, in milliseconds.
+     *
+     * @param listener Same as in
+     *                 {@link #requestLocationUpdates(UseProvider, long, long, long, LocationListener, boolean)
+     *                 requestLocationUpdates}.
+     *
+     * @param forwardProviderReadings Also forward location readings from the given providers to the given listener.
+     */
+    public void requestLocationUpdates(
+            Map<String, Long> providers,
+            long minTimeFilter,
+            LocationListener listener,
+            boolean forwardProviderReadings)
+    {
+        // Validate arguments
         if (listener == null)
             throw new IllegalArgumentException("listener can't be null");
 
-        if (minTimeFilter < 0) {
+        Map<String, Long> minTimes = copyProviders(providers);
 
-            Log.w(TAG, "minTimeFilter < 0. Setting to 0");
-            minTimeFilter = 0;
+        // Remove this listener if it is already in use
+        if (mListener2Thread.containsKey(listener)) {
+
+            Log.d(TAG, "Requested location updates with a listener that is already in use. Removing.");
+            removeUpdates(listener);
         }
 
-        if (minTimeGpsProvider < 0) {
+        startThread(minTimes, copyMinTimeFilter(minTimeFilter), listener, forwardProviderReadings, null);
+    }
 
-            Log.w(TAG, "minTimeGpsProvider < 0. Setting to 0");
-            minTimeGpsProvider = 0;
-        }
+    /**
+     * Same as {@link #getLocationPublisher(Map, long)}, choosing providers as in
+     * {@link #requestLocationUpdates(UseProvider, long, long, long, LocationListener, boolean)
+     * requestLocationUpdates}.
+     */
+    public Publisher<Location> getLocationPublisher(
+            UseProvider useProvider,
+            long minTimeFilter,
+            long minTimeGpsProvider,
+            long minTimeNetProvider)
+    {
+        return getLocationPublisher(
+                getProviders(useProvider, minTimeGpsProvider, minTimeNetProvider), minTimeFilter);
+    }
 
-        if (minTimeNetProvider < 0) {
+    /**
+     * Returns a <a href="http://www.reactive-streams.org/">Reactive Streams</a> Publisher of
+     * {@link android.location.Location Location} estimates from the given providers.
+     * <p>
+     * Each subscription runs its own filter, as if registered with
+     * {@link #requestLocationUpdates(Map, long, LocationListener, boolean) requestLocationUpdates}, until cancelled.
+     * Estimates are signalled on the filter thread rather than the client thread, and only as requested: while there
+     * is no outstanding demand, the filter stops predicting, and skipped predictions are caught up at once when more
+     * is requested (or a fix arrives). A subscriber asking for one estimate at a time thus gets the latest one,
+     * never a backlog. Subscribers should hand off any slow work to another thread.
+     * <p>
+     * Only estimates are signalled, neither provider readings nor status updates. The stream never completes.
+     *
+     * @param providers Provider names, and the minimum time interval between their readings, in milliseconds.
+     *
+     * @param minTimeFilter Minimum time interval between location estimates, in milliseconds.
+     *
+     * @return A Publisher starting a new filter for every subscriber.
+     */
+    public Publisher<Location> getLocationPublisher(Map<String, Long> providers, long minTimeFilter) {
 
-            Log.w(TAG, "minTimeNetProvider < 0. Setting to 0");
-            minTimeNetProvider = 0;
+        final Map<String, Long> minTimes = copyProviders(providers);
+        final long finalMinTimeFilter = copyMinTimeFilter(minTimeFilter);
+
+        return new Publisher<Location>() {
+
+            @Override
+            public void subscribe(Subscriber<? super Location> subscriber) {
+
+                // Rule 1.9
+                if (subscriber == null)
+                    throw new NullPointerException("subscriber can't be null");
+
+                LocationSubscription subscription = new LocationSubscription(KalmanLocationManager.this, subscriber);
+
+                subscriber.onSubscribe(subscription);
+
+                if (subscription.isCancelled())
+                    return;
+
+                startThread(minTimes, finalMinTimeFilter, subscription, false, subscription);
+
+                // Cancelled meanwhile, before the thread could be found
+                if (subscription.isCancelled())
+                    removeUpdates(subscription);
+            }
+        };
+    }
+
+    private static Map<String, Long> getProviders(
+            UseProvider useProvider, long minTimeGpsProvider, long minTimeNetProvider)
+    {
+        if (useProvider == null)
+            throw new IllegalArgumentException("useProvider can't be null");
+
+        Map<String, Long> providers = new LinkedHashMap<String, Long>();
+
+        if (useProvider == UseProvider.GPS || useProvider == UseProvider.GPS_AND_NET)
+            providers.put(LocationManager.GPS_PROVIDER, minTimeGpsProvider);
+
+        if (useProvider == UseProvider.NET || useProvider == UseProvider.GPS_AND_NET)
+            providers.put(LocationManager.NETWORK_PROVIDER, minTimeNetProvider);
+
+        if (useProvider == UseProvider.PASSIVE)
+            providers.put(LocationManager.PASSIVE_PROVIDER, minTimeGpsProvider);
+
+        return providers;
+    }
+
+    /**
+     * Validate the given providers, and copy them so later changes by the caller don't reach the filter thread.
+     */
+    private static Map<String, Long> copyProviders(Map<String, Long> providers) {
+
+        if (providers == null || providers.isEmpty())
+            throw new IllegalArgumentException("providers can't be null nor empty");
+
+        Map<String, Long> minTimes = new LinkedHashMap<String, Long>();
+
+        for (Map.Entry<String, Long> provider : providers.entrySet()) {
+
+            if (provider.getKey() == null)
+                throw new IllegalArgumentException("provider names can't be null");
+
+            long minTime = provider.getValue() != null ? provider.getValue() : 0;
+
+            if (minTime < 0) {
+
+                Log.w(TAG, "Minimum time for " + provider.getKey() + " < 0. Setting to 0");
+                minTime = 0;
+            }
+
+            minTimes.put(provider.getKey(), minTime);
         }
 
-        // Remove this listener if it is already in use
-        if (mListener2Thread.containsKey(listener)) {
+        return minTimes;
+    }
 
-            Log.d(TAG, "Requested location updates with a listener that is already in use. Removing.");
-            removeUpdates(listener);
+    private static long copyMinTimeFilter(long minTimeFilter) {
+
+        if (minTimeFilter < 0) {
+
+            Log.w(TAG, "minTimeFilter < 0. Setting to 0");
+            return 0;
         }
 
+        return minTimeFilter;
+    }
+
+    private void startThread(
+            Map<String, Long> minTimes,
+            long minTimeFilter,
+            LocationListener listener,
+            boolean forwardProviderReadings,
+            LocationSubscription subscription)
+    {
         LooperThread looperThread = new LooperThread(
-                mContext, useProvider, minTimeFilter, minTimeGpsProvider, minTimeNetProvider,
-                listener, forwardProviderReadings);
+                mContext, minTimes, minTimeFilter, listener, forwardProviderReadings, mStateStore,
+                mFilterStageFactories, mMultipleModels, mStationaryDetection ? new StationaryDetector(mUseAccelerometer) : null,
+                mProviderNoise, subscription);
 
         mListener2Thread.put(listener, looperThread);
     }
@@ -165,4 +491,112 @@ public class KalmanLocationManager {
 
         looperThread.close();
     }
+
+    /**
+     * Feeds the fixes of an external GNSS receiver to the filter of the specified LocationListener, along with those
+     * of its providers.
+     * <p>
+     * The receiver's NMEA (GGA, RMC and GST sentences) or UBX (NAV-PVT frames) output is read from the given channel
+     * on a dedicated thread, and parsed without allocating. Its fixes are fused like any other provider's, under the
+     * given provider name, so {@link #setProviderNoise(String, float, float) setProviderNoise} applies to them. To use
+     * only the external receiver, request updates for just that provider name: the device doesn't have it, so only
+     * the receiver feeds the filter.
+     * <p>
+     * Reading stops at the end of the channel, when it is closed, or on {@link #removeUpdates(LocationListener)
+     * removeUpdates}, which closes it.
+     *
+     * @param listener Listener previously passed to
+     *                 {@link #requestLocationUpdates(Map, long, LocationListener, boolean) requestLocationUpdates}.
+     *
+     * @param channel Blocking channel, e.g. of a Bluetooth or USB serial bridge, a socket, or a recording.
+     *
+     * @param provider Provider name of the receiver's fixes, such as {@link #EXTERNAL_GNSS_PROVIDER}.
+     *
+     * @return False if the listener isn't registered, in which case the channel is left untouched.
+     */
+    public boolean addGnssInput(LocationListener listener, ReadableByteChannel channel, String provider) {
+
+        if (channel == null || provider == null)
+            throw new IllegalArgumentException("channel and provider can't be null");
+
+        LooperThread looperThread = mListener2Thread.get(listener);
+
+        if (looperThread == null) {
+
+            Log.d(TAG, "Did not add GNSS input for given LocationListener. Wasn't registered in this instance.");
+            return false;
+        }
+
+        looperThread.addGnssInput(channel, provider);
+        return true;
+    }
+
+    /**
+     * Copies the latest filter state for the specified LocationListener into the given estimate.
+     * <p>
+     * May be called from any thread. It never blocks nor allocates, so it can be used on every frame of a
+     * render loop.
+     *
+     * @param listener Listener previously passed to
+     *                 {@link #requestLocationUpdates(UseProvider, long, long, long, LocationListener, boolean) requestLocationUpdates}.
+     *
+     * @param estimate Destination object, meant to be reused across calls.
+     *
+     * @return False if the listener isn't registered or no estimate has been produced yet,
+     *         in which case estimate is left untouched.
+     */
+    public boolean getEstimate(LocationListener listener, KalmanEstimate estimate) {
+
+        LooperThread looperThread = mListener2Thread.get(listener);
+
+        return looperThread != null && looperThread.getEstimate(estimate);
+    }
+
+    /**
+     * Copies the latest filter state for the specified LocationListener into the given estimate, extrapolated
+     * to the given time.
+     * <p>
+     * Allows running the filter at a low rate (1 or 2 Hz) while still drawing a smooth position on every frame.
+     * Same threading guarantees as {@link #getEstimate(LocationListener, KalmanEstimate)}.
+     *
+     * @param listener Listener previously passed to
+     *                 {@link #requestLocationUpdates(UseProvider, long, long, long, LocationListener, boolean) requestLocationUpdates}.
+     *
+     * @param timeNanos Time to extrapolate to, in the {@link System#nanoTime()} time base. Frame times reported by
+     *                  {@link android.view.Choreographer Choreographer} use that time base.
+     *
+     * @param estimate Destination object, meant to be reused across calls.
+     *
+     * @return False if the listener isn't registered or no estimate has been produced yet,
+     *         in which case estimate is left untouched.
+     */
+    public boolean getEstimate(LocationListener listener, long timeNanos, KalmanEstimate estimate) {
+
+        if (!getEstimate(listener, estimate))
+            return false;
+
+        estimate.extrapolate(timeNanos);
+        return true;
+    }
+
+    /**
+     * Copies the statistics of the trip since location updates were requested for the specified LocationListener.
+     * <p>
+     * Same threading guarantees as {@link #getEstimate(LocationListener, KalmanEstimate)}: statistics are accumulated
+     * by the filter thread as it goes, so querying them costs the same no matter how long the trip.
+     *
+     * @param listener Listener previously passed to
+     *                 {@link #requestLocationUpdates(UseProvider, long, long, long, LocationListener, boolean) requestLocationUpdates}.
+     *
+     * @param statistics Destination object, meant to be reused across calls.
+     *
+     * @return False if the listener isn't registered or no estimate has been produced yet,
+     *         in which case statistics is left untouched.
+     */
+    public boolean getTripStatistics(LocationListener listener, TripStatistics statistics) {
+
+        LooperThread looperThread = mListener2Thread.get(listener);
+
+        return looperThread != null && looperThread.getTripStatistics(statistics);
+    }
 }
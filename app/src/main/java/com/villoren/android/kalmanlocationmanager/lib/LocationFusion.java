@@ -0,0 +1,442 @@
+/*
+ * LocationFusion
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+/**
+ * Fuses location fixes into three 1-dimension trackers, one per coordinate.
+ * <p>
+ * Free of Android dependencies, so the exact same logic runs on devices and on the fusion server.
+ * Not thread safe.
+ */
+public class LocationFusion {
+
+    static final double DEG_TO_METER = 111225.0;
+    static final double METER_TO_DEG = 1.0 / DEG_TO_METER;
+
+    static final double TIME_STEP = 1.0;
+    static final double COORDINATE_NOISE = 4.0 * METER_TO_DEG;
+    static final double ALTITUDE_NOISE = 10.0;
+
+    /**
+     * Motion models, see {@link #getModelProbability(int)}.
+     */
+    public static final int MODEL_STATIONARY = 0, MODEL_CONSTANT_VELOCITY = 1, MODEL_MANEUVERING = 2;
+
+    /**
+     * Most steps {@link #predictTo(long, boolean) predictTo} predicts at once. Beyond that, the next fix dominates
+     * anyway.
+     */
+    static final long MAX_PREDICTED_STEPS = 600;
+
+    /**
+     * Step value while {@link #predictTo(long, boolean) predictTo} isn't in use.
+     */
+    private static final long NO_STEP = Long.MIN_VALUE;
+
+    /**
+     * Three 1-dimension trackers, since the dimensions are independent and can avoid using matrices.
+     * <p>
+     * With multiple models, the horizontal ones just hold the combined state.
+     */
+    private Tracker1D mLatitudeTracker, mLongitudeTracker, mAltitudeTracker;
+
+    /**
+     * Horizontal multiple model tracker. Null if disabled.
+     */
+    private final ImmTracker mImmTracker;
+
+    /**
+     * Whether a prediction was made since the last correction.
+     */
+    private boolean mPredicted;
+
+    /**
+     * Time step the trackers are at, once {@link #predictTo(long, boolean) predictTo} is in use. NO_STEP otherwise.
+     */
+    private long mStep = NO_STEP;
+
+    /**
+     * Whether single model trackers may take their steady state path.
+     */
+    private boolean mSteadyState;
+
+    /**
+     * Creates a fusion with a single constant velocity model.
+     */
+    public LocationFusion() {
+
+        this(false);
+    }
+
+    /**
+     * @param multipleModels Track latitude and longitude with a bank of motion models (stationary, constant
+     *                       velocity and maneuvering) instead of a single constant velocity one. Copes better with
+     *                       stop-and-go motion, at a few times the cost per step.
+     */
+    public LocationFusion(boolean multipleModels) {
+
+        mImmTracker = multipleModels ? new ImmTracker() : null;
+    }
+
+    /**
+     * Enables or disables the steady state path of the trackers. Disabled by default.
+     * <p>
+     * When fixes come once per prediction with a constant accuracy, as on a server replaying fixed rate streams, the
+     * trackers converge to fixed gains within a few dozen fixes, and then skip the covariance arithmetic until the
+     * accuracy or the rate changes. Results stay within millimeters of the full path. Ignored for multiple models.
+     *
+     * @param enabled Whether to take the steady state path once converged.
+     */
+    public void setSteadyState(boolean enabled) {
+
+        mSteadyState = enabled;
+
+        if (mLatitudeTracker != null) {
+
+            mLatitudeTracker.setSteadyState(enabled);
+            mLongitudeTracker.setSteadyState(enabled);
+        }
+
+        if (mAltitudeTracker != null)
+            mAltitudeTracker.setSteadyState(enabled);
+    }
+
+    /**
+     * Correct with the given fix. Trackers are created on the first fix (the altitude one on the first fix
+     * with altitude).
+     * <p>
+     * Unless predicted since the last fix, predicts one time step first. Once time steps are set with
+     * {@link #predictTo(long, boolean) predictTo}, never does: all fixes between two steps belong to the same one.
+     *
+     * @param latitude Latitude, in degrees.
+     * @param longitude Longitude, in degrees.
+     * @param altitude Altitude, in meters. Ignored unless hasAltitude.
+     * @param hasAltitude Whether the fix has an altitude.
+     * @param accuracy Fix accuracy, in meters.
+     */
+    public void correct(double latitude, double longitude, double altitude, boolean hasAltitude, double accuracy) {
+
+        if (Tracing.ENABLED)
+            Tracing.begin(Tracing.CORRECT);
+
+        // Reusable
+        double position, noise;
+
+        final boolean predict = !mPredicted && mStep == NO_STEP;
+
+        // Latitude
+        position = latitude;
+        noise = accuracy * METER_TO_DEG;
+
+        if (mLatitudeTracker == null) {
+
+            mLatitudeTracker = new Tracker1D(TIME_STEP, COORDINATE_NOISE);
+            mLatitudeTracker.setState(position, 0.0, noise);
+            mLatitudeTracker.setSteadyState(mSteadyState);
+        }
+
+        if (mImmTracker == null) {
+
+            if (predict)
+                mLatitudeTracker.predict(0.0);
+
+            mLatitudeTracker.update(position, noise);
+        }
+
+        // Longitude
+        position = longitude;
+        noise = accuracy * Math.cos(Math.toRadians(latitude)) * METER_TO_DEG;
+
+        if (mLongitudeTracker == null) {
+
+            mLongitudeTracker = new Tracker1D(TIME_STEP, COORDINATE_NOISE);
+            mLongitudeTracker.setState(position, 0.0, noise);
+            mLongitudeTracker.setSteadyState(mSteadyState);
+
+            if (mImmTracker != null)
+                mImmTracker.setState(mLatitudeTracker, mLongitudeTracker);
+        }
+
+        if (mImmTracker == null) {
+
+            if (predict)
+                mLongitudeTracker.predict(0.0);
+
+            mLongitudeTracker.update(position, noise);
+
+        } else {
+
+            if (predict)
+                mImmTracker.predict();
+
+            mImmTracker.update(latitude, accuracy * METER_TO_DEG, longitude, noise, true);
+            mImmTracker.getState(mLatitudeTracker, mLongitudeTracker);
+        }
+
+        // Altitude
+        if (hasAltitude) {
+
+            position = altitude;
+            noise = accuracy;
+
+            if (mAltitudeTracker == null) {
+
+                mAltitudeTracker = new Tracker1D(TIME_STEP, ALTITUDE_NOISE);
+                mAltitudeTracker.setState(position, 0.0, noise);
+                mAltitudeTracker.setSteadyState(mSteadyState);
+            }
+
+            if (predict)
+                mAltitudeTracker.predict(0.0);
+
+            mAltitudeTracker.update(position, noise);
+        }
+
+        // Reset predicted flag
+        mPredicted = false;
+
+        if (Tracing.ENABLED)
+            Tracing.end();
+    }
+
+    /**
+     * Correct the horizontal position with a pseudo-measurement, such as a position snapped to a road.
+     * <p>
+     * Doesn't count as a correction for {@link #correct(double, double, double, boolean, double) correct}: a fix
+     * arriving after it, with no prediction in between, still belongs to the same time step.
+     *
+     * @param latitude Latitude, in degrees.
+     * @param longitude Longitude, in degrees.
+     * @param noise Standard deviation, in meters.
+     */
+    void correctHorizontal(double latitude, double longitude, double noise) {
+
+        double latitudeNoise = noise * METER_TO_DEG;
+        double longitudeNoise = noise * Math.cos(Math.toRadians(latitude)) * METER_TO_DEG;
+
+        if (mImmTracker != null) {
+
+            // Derived from the estimate itself, so it says nothing new about the motion model
+            mImmTracker.update(latitude, latitudeNoise, longitude, longitudeNoise, false);
+            mImmTracker.getState(mLatitudeTracker, mLongitudeTracker);
+
+        } else {
+
+            mLatitudeTracker.update(latitude, latitudeNoise);
+            mLongitudeTracker.update(longitude, longitudeNoise);
+        }
+    }
+
+    /**
+     * Correct with a zero-velocity pseudo-measurement, for when the device is known to be standing still.
+     *
+     * @param noise Standard deviation of the velocity, in meters per time step.
+     */
+    void correctZeroVelocity(double noise) {
+
+        double latitudeNoise = noise * METER_TO_DEG;
+        double longitudeNoise = noise * Math.cos(Math.toRadians(getLatitude())) * METER_TO_DEG;
+
+        if (mImmTracker != null) {
+
+            mImmTracker.updateZeroVelocity(latitudeNoise, longitudeNoise);
+            mImmTracker.getState(mLatitudeTracker, mLongitudeTracker);
+
+        } else {
+
+            mLatitudeTracker.updateVelocity(0.0, latitudeNoise);
+            mLongitudeTracker.updateVelocity(0.0, longitudeNoise);
+        }
+
+        if (mAltitudeTracker != null)
+            mAltitudeTracker.updateVelocity(0.0, noise);
+    }
+
+    /**
+     * Predict one time step.
+     *
+     * @param altitude Whether to predict altitude too.
+     */
+    public void predict(boolean altitude) {
+
+        if (Tracing.ENABLED)
+            Tracing.begin(Tracing.PREDICT);
+
+        if (mImmTracker != null) {
+
+            mImmTracker.predict();
+            mImmTracker.getState(mLatitudeTracker, mLongitudeTracker);
+
+        } else {
+
+            mLatitudeTracker.predict(0.0);
+            mLongitudeTracker.predict(0.0);
+        }
+
+        if (altitude)
+            mAltitudeTracker.predict(0.0);
+
+        mPredicted = true;
+
+        if (Tracing.ENABLED)
+            Tracing.end();
+    }
+
+    /**
+     * Predict up to the given time step, one step at a time, and fuse all fixes until the next one into it. Keeps
+     * one prediction per time step whatever the fix rate, where {@link #correct(double, double, double, boolean,
+     * double) correct} alone would take each fix for a step of its own.
+     * <p>
+     * Steps up to the current one are ignored, and only the last {@link #MAX_PREDICTED_STEPS} of a longer gap are
+     * predicted. Before the first fix, just sets the step the trackers start at.
+     *
+     * @param step Time step index, e.g. a time over the time step length.
+     * @param altitude Whether to predict altitude too.
+     */
+    void predictTo(long step, boolean altitude) {
+
+        if (isStarted() && mStep != NO_STEP) {
+
+            if (step <= mStep)
+                return;
+
+            for (long i = Math.min(step - mStep, MAX_PREDICTED_STEPS); i > 0; i--)
+                predict(altitude);
+        }
+
+        mStep = step;
+    }
+
+    /**
+     * Squared distance between the given fix and the estimated position, over its expected variance.
+     * <p>
+     * Follows a chi-square distribution with 2 degrees of freedom as long as the filter is consistent with its fixes.
+     *
+     * @param latitude Latitude, in degrees.
+     * @param longitude Longitude, in degrees.
+     * @param accuracy Fix accuracy, in meters.
+     */
+    double getInnovation(double latitude, double longitude, double accuracy) {
+
+        // In meters
+        double r = accuracy * accuracy;
+        double east = DEG_TO_METER * Math.cos(Math.toRadians(latitude));
+
+        double dNorth = (latitude - mLatitudeTracker.getPosition()) * DEG_TO_METER;
+        double dEast = (longitude - mLongitudeTracker.getPosition()) * east;
+
+        return dNorth * dNorth / (mLatitudeTracker.getPositionVariance() * DEG_TO_METER * DEG_TO_METER + r)
+                + dEast * dEast / (mLongitudeTracker.getPositionVariance() * east * east + r);
+    }
+
+    /**
+     * @return False if any tracker went non-finite or lost a positive definite covariance.
+     */
+    boolean isHealthy() {
+
+        return mLatitudeTracker.isValid() && mLongitudeTracker.isValid()
+                && (mAltitudeTracker == null || mAltitudeTracker.isValid());
+    }
+
+    /**
+     * Drop the trackers, so they are created again from the next fix.
+     */
+    void reset() {
+
+        mLatitudeTracker = null;
+        mLongitudeTracker = null;
+        mAltitudeTracker = null;
+        mPredicted = false;
+        mStep = NO_STEP;
+    }
+
+    /**
+     * Replace the trackers, e.g. with restored ones.
+     *
+     * @param latitude Latitude tracker.
+     * @param longitude Longitude tracker.
+     * @param altitude Altitude tracker. May be null.
+     * @param step Time step they are at, see {@link #predictTo(long, boolean)}.
+     */
+    void setTrackers(Tracker1D latitude, Tracker1D longitude, Tracker1D altitude, long step) {
+
+        mLatitudeTracker = latitude;
+        mLongitudeTracker = longitude;
+        mAltitudeTracker = altitude;
+        mPredicted = false;
+        mStep = step;
+
+        if (mImmTracker != null)
+            mImmTracker.setState(latitude, longitude);
+    }
+
+    /**
+     * @return True once the first fix was fused.
+     */
+    public boolean isStarted() { return mLatitudeTracker != null; }
+
+    /**
+     * @return True if altitude is being tracked.
+     */
+    public boolean hasAltitudeTracker() { return mAltitudeTracker != null; }
+
+    /**
+     * @return Estimated latitude, in degrees.
+     */
+    public double getLatitude() { return mLatitudeTracker.getPosition(); }
+
+    /**
+     * @return Estimated longitude, in degrees.
+     */
+    public double getLongitude() { return mLongitudeTracker.getPosition(); }
+
+    /**
+     * @return Estimated altitude, in meters. Only meaningful if {@link #hasAltitudeTracker()}.
+     */
+    public double getAltitude() { return mAltitudeTracker.getPosition(); }
+
+    /**
+     * @param model One of {@link #MODEL_STATIONARY}, {@link #MODEL_CONSTANT_VELOCITY} or {@link #MODEL_MANEUVERING}.
+     * @return Probability of the given motion model. Without multiple models, constant velocity is certain.
+     */
+    public double getModelProbability(int model) {
+
+        if (mImmTracker != null)
+            return mImmTracker.getProbability(model);
+
+        return model == MODEL_CONSTANT_VELOCITY ? 1.0 : 0.0;
+    }
+
+    Tracker1D getLatitudeTracker() { return mLatitudeTracker; }
+
+    Tracker1D getLongitudeTracker() { return mLongitudeTracker; }
+
+    Tracker1D getAltitudeTracker() { return mAltitudeTracker; }
+
+    /**
+     * @return Accuracy reported by estimates, in meters.
+     */
+    public double getAccuracy() { return mLatitudeTracker.getAccuracy() * DEG_TO_METER; }
+}
@@ -0,0 +1,199 @@
+/*
+ * LocationSubscription
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.os.Bundle;
+import android.os.Handler;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscription to the estimates of one filter thread, as handed out by
+ * {@link KalmanLocationManager#getLocationPublisher(java.util.Map, long) getLocationPublisher}.
+ * <p>
+ * Registered as that thread's listener: estimates are signalled right on the filter thread, and only as long as
+ * there is outstanding demand. The filter thread stops predicting meanwhile, see {@link #hasDemand()}.
+ */
+class LocationSubscription implements Subscription, LocationListener {
+
+    private final KalmanLocationManager mManager;
+    private final Subscriber<? super Location> mSubscriber;
+
+    /**
+     * Outstanding demand. {@link Long#MAX_VALUE} means unbounded.
+     */
+    private final AtomicLong mDemand = new AtomicLong();
+
+    private volatile boolean mCancelled;
+
+    /**
+     * Set by an invalid {@link #request(long)}, to be signalled on the filter thread.
+     */
+    private volatile IllegalArgumentException mError;
+
+    /**
+     * Where to post onDemand to, once the filter thread is running.
+     */
+    private volatile Handler mFilterHandler;
+    private volatile Runnable mOnDemand;
+
+    LocationSubscription(KalmanLocationManager manager, Subscriber<? super Location> subscriber) {
+
+        mManager = manager;
+        mSubscriber = subscriber;
+    }
+
+    /**
+     * Called from the filter thread once it is running.
+     *
+     * @param filterHandler Handler of the filter thread.
+     * @param onDemand Run on the filter thread whenever demand goes from none to some, or an error is pending.
+     */
+    void attach(Handler filterHandler, Runnable onDemand) {
+
+        mOnDemand = onDemand;
+        mFilterHandler = filterHandler;
+
+        // Demand may have arrived before
+        filterHandler.post(onDemand);
+    }
+
+    /**
+     * Called from the filter thread.
+     *
+     * @return Whether an estimate would be signalled right now.
+     */
+    boolean hasDemand() {
+
+        return !mCancelled && mDemand.get() > 0;
+    }
+
+    /**
+     * Called from the filter thread. Signals a pending error, and cancels.
+     *
+     * @return Whether this subscription is done.
+     */
+    boolean signalError() {
+
+        IllegalArgumentException error = mError;
+
+        if (error != null && !mCancelled) {
+
+            mCancelled = true;
+            mSubscriber.onError(error);
+            mManager.removeUpdates(this);
+        }
+
+        return mCancelled;
+    }
+
+    boolean isCancelled() { return mCancelled; }
+
+    @Override
+    public void request(long n) {
+
+        if (n <= 0) {
+
+            // Rule 3.9
+            mError = new IllegalArgumentException("Requested " + n + " estimates. Must be positive.");
+            wake();
+            return;
+        }
+
+        while (true) {
+
+            long demand = mDemand.get();
+            long sum = demand + n;
+
+            // Saturate at unbounded, rule 3.17
+            if (sum < 0)
+                sum = Long.MAX_VALUE;
+
+            if (mDemand.compareAndSet(demand, sum)) {
+
+                if (demand == 0)
+                    wake();
+
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void cancel() {
+
+        if (mCancelled)
+            return;
+
+        mCancelled = true;
+        mManager.removeUpdates(this);
+    }
+
+    private void wake() {
+
+        Handler filterHandler = mFilterHandler;
+
+        // Not attached yet: the filter thread checks once when attaching
+        if (filterHandler != null)
+            filterHandler.post(mOnDemand);
+    }
+
+    // Called from the filter thread, as its listener
+
+    @Override
+    public void onLocationChanged(Location location) {
+
+        if (mCancelled)
+            return;
+
+        while (true) {
+
+            long demand = mDemand.get();
+
+            // Coalesced: the next prediction will be more recent anyway
+            if (demand == 0)
+                return;
+
+            if (demand == Long.MAX_VALUE || mDemand.compareAndSet(demand, demand - 1))
+                break;
+        }
+
+        mSubscriber.onNext(location);
+    }
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {}
+
+    @Override
+    public void onProviderEnabled(String provider) {}
+
+    @Override
+    public void onProviderDisabled(String provider) {}
+}
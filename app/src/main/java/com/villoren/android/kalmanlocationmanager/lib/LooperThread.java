@@ -25,18 +25,37 @@
 package com.villoren.android.kalmanlocationmanager.lib;
 
 import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
+import android.location.LocationProvider;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.SystemClock;
+import android.util.Log;
 
+import java.nio.channels.ReadableByteChannel;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.villoren.android.kalmanlocationmanager.lib.KalmanLocationManager.EXTRA_RESET_COUNT;
+import static com.villoren.android.kalmanlocationmanager.lib.KalmanLocationManager.EXTRA_RESET_REASON;
 import static com.villoren.android.kalmanlocationmanager.lib.KalmanLocationManager.KALMAN_PROVIDER;
-import static com.villoren.android.kalmanlocationmanager.lib.KalmanLocationManager.UseProvider;
+import static com.villoren.android.kalmanlocationmanager.lib.KalmanLocationManager.RESET_INCONSISTENT_FIXES;
+import static com.villoren.android.kalmanlocationmanager.lib.KalmanLocationManager.RESET_INVALID_STATE;
+import static com.villoren.android.kalmanlocationmanager.lib.KalmanLocationManager.RESET_SLEEP;
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.ALTITUDE_NOISE;
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.COORDINATE_NOISE;
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.TIME_STEP;
 
 /**
  * Created by Rena on 28/09/2014.
@@ -46,12 +65,37 @@ class LooperThread extends Thread {
     // Static constant
     private static final int THREAD_PRIORITY = 5;
 
-    private static final double DEG_TO_METER = 111225.0;
-    private static final double METER_TO_DEG = 1.0 / DEG_TO_METER;
+    /**
+     * Standard deviation of zero-velocity pseudo-measurements applied while stationary, in meters per second.
+     */
+    private static final double ZERO_VELOCITY_NOISE = 0.1;
+
+    /**
+     * Number of recent fixes remembered to drop duplicates.
+     */
+    private static final int RECENT_FIXES = 4;
+
+    /**
+     * Innovation beyond which a fix is inconsistent with the estimate: chi-square with 2 degrees of freedom, 99.99%.
+     */
+    private static final double INNOVATION_GATE = 18.42;
+
+    /**
+     * Inconsistent fixes in a row after which the estimate is deemed wrong, rather than the fixes.
+     */
+    private static final int INCONSISTENT_FIXES = 3;
+
+    /**
+     * Deep sleep since the last fix beyond which the state is stale, in milliseconds. Ticks stop meanwhile, and
+     * predicting the missed time steps afterwards is no better than starting over.
+     */
+    private static final long MAX_SLEEP_MILLIS = 60000;
+
+    /**
+     * Logger tag.
+     */
+    private static final String TAG = LooperThread.class.getSimpleName();
 
-    private static final double TIME_STEP = 1.0;
-    private static final double COORDINATE_NOISE = 4.0 * METER_TO_DEG;
-    private static final double ALTITUDE_NOISE = 10.0;
 
     // Context
     private final Context mContext;
@@ -59,55 +103,149 @@ class LooperThread extends Thread {
     private final LocationManager mLocationManager;
 
     // Settings
-    private final UseProvider mUseProvider;
-    private final long mMinTimeFilter;
-    private final long mMinTimeGpsProvider;
-    private final long mMinTimeNetProvider;
+    private final Map<String, Long> mProviders;
     private final LocationListener mClientLocationListener;
     private final boolean mForwardProviderUpdates;
+    private final StateStore mStateStore;
+    private final List<FilterStage.Factory> mFilterStageFactories;
+    private final StationaryDetector mStationaryDetector;
+    private final Map<String, ProviderNoise> mProviderNoise;
+    private final LocationSubscription mSubscription;
+
+    /**
+     * Duration of one tracker time step, in milliseconds and in seconds. Trackers predict once per filter tick.
+     */
+    private final long mTickMillis;
+    private final double mTimeStepSeconds;
+
+    // Cross-thread state
+    private final KalmanEstimate mEstimate = new KalmanEstimate();
+    private final SeqLock mEstimateLock = new SeqLock(KalmanEstimate.SIZE);
+
+    /**
+     * Trip statistics, accumulated on every published estimate.
+     */
+    private final TripStatistics mTripStatistics = new TripStatistics();
+    private final SeqLock mTripLock = new SeqLock(TripStatistics.SIZE);
+
+    /**
+     * External GNSS receivers feeding this thread, and the handler their fixes are posted to, once looping.
+     */
+    private final List<GnssInput> mGnssInputs = new CopyOnWriteArrayList<GnssInput>();
+    private volatile Handler mInputHandler;
 
     // Thread
-    private Looper mLooper;
+    private volatile Looper mLooper;
     private Handler mOwnHandler;
+
+    /**
+     * Set by {@link #close()}, from any thread. If set before looping, the thread releases everything itself, since
+     * close() may have run before the registrations it undoes.
+     */
+    private volatile boolean mClosed;
     private Location mLastLocation;
-    private boolean mPredicted;
 
     /**
-     * Three 1-dimension trackers, since the dimensions are independent and can avoid using matrices.
+     * Time of the first tick not predicted for a lack of demand, in the {@link SystemClock#elapsedRealtime()} time
+     * base. Negative while predicting.
+     */
+    private long mSuspendedAt = -1;
+
+    /**
+     * Watchdog state: inconsistent fixes in a row, time of the last fix in both time bases, and the reason of a
+     * reset still waiting for a fix (null if none).
+     */
+    private int mInconsistentFixes;
+    private long mLastFixRealtime, mLastFixUptime;
+    private String mResetReason;
+
+    /**
+     * Time step of the last fused fix.
+     */
+    private long mFixStep;
+
+    /**
+     * Watchdog counters, published with each estimate.
+     */
+    private long mResetCount, mRejectedFixCount;
+
+    /**
+     * Time and position of the last fixes, to recognize the same fix arriving through several providers.
+     */
+    private final long[] mRecentTimes = new long[RECENT_FIXES];
+    private final double[] mRecentLatitudes = new double[RECENT_FIXES];
+    private final double[] mRecentLongitudes = new double[RECENT_FIXES];
+    private int mRecentIndex;
+
+    /**
+     * Fixes fused so far, and the first one not followed by a delivered estimate yet. Identify the async trace
+     * slices from each fix to the estimate it produced.
      */
-    private Tracker1D mLatitudeTracker, mLongitudeTracker, mAltitudeTracker;
+    private int mFixCount, mFirstPendingFix = 1;
+
+    /**
+     * Distinguishes the async trace slices of this thread from those of others.
+     */
+    private final int mTraceId = Tracing.ENABLED ? Tracing.nextId() : 0;
+
+    /**
+     * Stages of this thread only, by the factory that created them.
+     */
+    private final Map<FilterStage.Factory, FilterStage> mFilterStages =
+            new IdentityHashMap<FilterStage.Factory, FilterStage>();
+
+    /**
+     * Trackers and fusion logic.
+     */
+    private final LocationFusion mFusion;
 
     /**
      *
      * @param context
-     * @param useProvider
+     * @param providers Names of the providers to register, and the minimum time between their readings.
      * @param minTimeFilter
-     * @param minTimeGpsProvider
-     * @param minTimeNetProvider
      * @param locationListener
      * @param forwardProviderUpdates
+     * @param stateStore Where to restore the initial state from and save the final state to. May be null.
+     * @param filterStageFactories Factories of the stages to run on each prediction. Shared with the caller, must be
+     *                             safe to iterate while being modified.
+     * @param multipleModels Whether to track horizontal motion with multiple models.
+     * @param stationaryDetector Detector for this thread only. May be null.
+     * @param providerNoise Noise settings by provider name. Shared with the caller, must be safe to read while
+     *                      being modified.
+     * @param subscription If not null, estimates are delivered to it on this thread, and only on demand.
+     *                     Then it must also be the given listener.
      */
     LooperThread(
             Context context,
-            UseProvider useProvider,
+            Map<String, Long> providers,
             long minTimeFilter,
-            long minTimeGpsProvider,
-            long minTimeNetProvider,
             LocationListener locationListener,
-            boolean forwardProviderUpdates)
+            boolean forwardProviderUpdates,
+            StateStore stateStore,
+            List<FilterStage.Factory> filterStageFactories,
+            boolean multipleModels,
+            StationaryDetector stationaryDetector,
+            Map<String, ProviderNoise> providerNoise,
+            LocationSubscription subscription)
     {
         mContext = context;
-        mClientHandler = new Handler();
+        mClientHandler = subscription == null ? new Handler() : null;
         mLocationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
 
-        mUseProvider = useProvider;
-
-        mMinTimeFilter = minTimeFilter;
-        mMinTimeGpsProvider = minTimeGpsProvider;
-        mMinTimeNetProvider = minTimeNetProvider;
+        mProviders = providers;
 
         mClientLocationListener = locationListener;
         mForwardProviderUpdates = forwardProviderUpdates;
+        mStateStore = stateStore;
+        mFilterStageFactories = filterStageFactories;
+        mFusion = new LocationFusion(multipleModels);
+        mStationaryDetector = stationaryDetector;
+        mProviderNoise = providerNoise;
+        mSubscription = subscription;
+
+        mTickMillis = Math.max(minTimeFilter, 1);
+        mTimeStepSeconds = mTickMillis / 1000.0;
 
         start();
     }
@@ -120,91 +258,550 @@ class LooperThread extends Thread {
         Looper.prepare();
         mLooper = Looper.myLooper();
 
-        if (mUseProvider == UseProvider.GPS || mUseProvider == UseProvider.GPS_AND_NET) {
+        if (mSubscription != null)
+            mSubscription.attach(new Handler(mLooper), mDemandRunnable);
+
+        mInputHandler = new Handler(mLooper);
+
+        if (mStateStore != null)
+            restoreState();
+
+        List<String> available = mLocationManager.getAllProviders();
+
+        for (Map.Entry<String, Long> provider : mProviders.entrySet()) {
+
+            if (!available.contains(provider.getKey())) {
+
+                Log.w(TAG, "Provider " + provider.getKey() + " not available on this device. Ignoring.");
+                continue;
+            }
 
             mLocationManager.requestLocationUpdates(
-                    LocationManager.GPS_PROVIDER, mMinTimeGpsProvider, 0.0f, mOwnLocationListener, mLooper);
+                    provider.getKey(), provider.getValue(), 0.0f, mOwnLocationListener, mLooper);
         }
 
-        if (mUseProvider == UseProvider.NET || mUseProvider == UseProvider.GPS_AND_NET) {
+        if (mStationaryDetector != null && mStationaryDetector.usesAccelerometer()) {
 
-            mLocationManager.requestLocationUpdates(
-                    LocationManager.NETWORK_PROVIDER, mMinTimeNetProvider, 0.0f, mOwnLocationListener, mLooper);
+            SensorManager sensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
+            Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+
+            if (accelerometer != null) {
+
+                sensorManager.registerListener(
+                        mAccelerometerListener, accelerometer, SensorManager.SENSOR_DELAY_NORMAL, new Handler(mLooper));
+            }
+        }
+
+        // Closed while starting, e.g. a subscription cancelled right away
+        if (mClosed) {
+
+            release();
+            return;
         }
 
         Looper.loop();
     }
 
+    /**
+     * Stop the thread, and release its registrations. May be called from any thread, even before it started looping.
+     */
     public void close() {
 
+        mClosed = true;
+
+        // Not started yet: the thread sees the flag before looping, and releases everything itself
+        if (mLooper == null)
+            return;
+
+        release();
+    }
+
+    /**
+     * Undo the registrations of {@link #run()}, quit the looper and save the final state. Harmless if repeated.
+     */
+    private void release() {
+
         mLocationManager.removeUpdates(mOwnLocationListener);
+
+        for (GnssInput input : mGnssInputs)
+            input.close();
+
+        if (mStationaryDetector != null && mStationaryDetector.usesAccelerometer()) {
+
+            SensorManager sensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
+            sensorManager.unregisterListener(mAccelerometerListener);
+        }
+
         mLooper.quit();
+
+        // Save final state
+        if (mStateStore != null) {
+
+            KalmanEstimate estimate = new KalmanEstimate();
+
+            if (getEstimate(estimate))
+                mStateStore.save(estimate);
+        }
     }
 
-    private LocationListener mOwnLocationListener = new LocationListener() {
+    /**
+     * Start reading fixes from an external GNSS receiver, until the channel ends or is closed, or this thread is.
+     *
+     * @param channel Blocking channel to read NMEA or UBX from.
+     * @param provider Provider name of its fixes.
+     */
+    void addGnssInput(ReadableByteChannel channel, String provider) {
 
-        @Override
-        public void onLocationChanged(final Location location) {
+        GnssInput input = new GnssInput(channel, provider, this);
+
+        mGnssInputs.add(input);
+        input.start();
+    }
+
+    /**
+     * Feed a fix from an external receiver, from any thread. Dropped if this thread isn't looping yet.
+     */
+    void postFix(final Location location) {
+
+        Handler handler = mInputHandler;
 
-            // Reusable
-            final double accuracy = location.getAccuracy();
-            double position, noise;
+        if (handler == null)
+            return;
 
-            // Latitude
-            position = location.getLatitude();
-            noise = accuracy * METER_TO_DEG;
+        handler.post(new Runnable() {
 
-            if (mLatitudeTracker == null) {
+            @Override
+            public void run() {
 
-                mLatitudeTracker = new Tracker1D(TIME_STEP, COORDINATE_NOISE);
-                mLatitudeTracker.setState(position, 0.0, noise);
+                mOwnLocationListener.onLocationChanged(location);
             }
+        });
+    }
+
+    /**
+     * Seed the trackers from the saved state, inflating the covariance for the time elapsed since it was saved,
+     * and deliver a first low-confidence estimate right away. Velocity isn't restored, since it is most probably stale.
+     */
+    private void restoreState() {
+
+        long age = mStateStore.load(mEstimate);
+
+        if (age < 0)
+            return;
+
+        double steps = age / 1000.0 / mTimeStepSeconds;
+
+        mFusion.setTrackers(
+                restoreTracker(KalmanEstimate.LATITUDE, COORDINATE_NOISE, steps),
+                restoreTracker(KalmanEstimate.LONGITUDE, COORDINATE_NOISE, steps),
+                mEstimate.hasAltitude() ? restoreTracker(KalmanEstimate.ALTITUDE, ALTITUDE_NOISE, steps) : null,
+                getStep(SystemClock.elapsedRealtime()));
+
+        updateEstimate();
+        publishEstimate();
+
+        // The restored state accounts for the time since it was saved, asleep or not
+        mLastFixRealtime = SystemClock.elapsedRealtime();
+        mLastFixUptime = SystemClock.uptimeMillis();
+
+        final Location location = createLocation();
+
+        deliver(location);
+    }
+
+    private Tracker1D restoreTracker(int axis, double processNoise, double steps) {
+
+        Tracker1D tracker = new Tracker1D(TIME_STEP, processNoise);
+
+        // Velocity starts over as in a new tracker: unknown, and uncorrelated with the position
+        tracker.setState(
+                mEstimate.getPosition(axis),
+                0.0,
+                mEstimate.getPositionVariance(axis),
+                0.0,
+                processNoise * processNoise * TIME_STEP * TIME_STEP);
+
+        tracker.inflate(steps);
+
+        return tracker;
+    }
+
+    /**
+     * Copy the last published filter state. May be called from any thread, never blocks nor allocates.
+     *
+     * @param estimate Destination object.
+     * @return False if there is no estimate yet.
+     */
+    boolean getEstimate(KalmanEstimate estimate) {
+
+        return mEstimateLock.read(estimate.mSlots);
+    }
+
+    /**
+     * Copy the last published trip statistics. May be called from any thread, never blocks nor allocates.
+     *
+     * @param statistics Destination object.
+     * @return False if there is no estimate yet.
+     */
+    boolean getTripStatistics(TripStatistics statistics) {
+
+        return mTripLock.read(statistics.mSlots);
+    }
+
+    /**
+     * Copy the current tracker state into the working estimate.
+     */
+    private void updateEstimate() {
+
+        final boolean hasAltitude = hasAltitude();
+
+        mEstimate.setAxis(KalmanEstimate.LATITUDE, mFusion.getLatitudeTracker(), mTimeStepSeconds);
+        mEstimate.setAxis(KalmanEstimate.LONGITUDE, mFusion.getLongitudeTracker(), mTimeStepSeconds);
+
+        if (hasAltitude)
+            mEstimate.setAxis(KalmanEstimate.ALTITUDE, mFusion.getAltitudeTracker(), mTimeStepSeconds);
+
+        mEstimate.setHasAltitude(hasAltitude);
+        mEstimate.setAccuracy(mFusion.getAccuracy());
 
-            if (!mPredicted)
-                mLatitudeTracker.predict(0.0);
+        for (int model = 0; model < ImmTracker.MODELS; model++)
+            mEstimate.setModelProbability(model, mFusion.getModelProbability(model));
 
-            mLatitudeTracker.update(position, noise);
+        mEstimate.setResetCount(mResetCount);
+        mEstimate.setRejectedFixCount(mRejectedFixCount);
 
-            // Longitude
-            position = location.getLongitude();
-            noise = accuracy * Math.cos(Math.toRadians(location.getLatitude())) * METER_TO_DEG ;
+        mEstimate.setTimeNanos(System.nanoTime());
+    }
+
+    /**
+     * Publish the working estimate for other threads, and the trip statistics updated with it.
+     * Called from this thread only.
+     */
+    private void publishEstimate() {
+
+        mEstimateLock.write(mEstimate.mSlots);
+
+        mTripStatistics.accumulate(mEstimate);
+        mTripLock.write(mTripStatistics.mSlots);
+    }
+
+    /**
+     * Run the filter stages on the working estimate, and feed any correction back into the trackers.
+     */
+    private void runFilterStages() {
+
+        int count = 0;
+
+        for (FilterStage.Factory factory : mFilterStageFactories) {
 
-            if (mLongitudeTracker == null) {
+            FilterStage stage = mFilterStages.get(factory);
 
-                mLongitudeTracker = new Tracker1D(TIME_STEP, COORDINATE_NOISE);
-                mLongitudeTracker.setState(position, 0.0, noise);
+            // Created on first use, so stages added meanwhile are picked up too
+            if (stage == null) {
+
+                stage = factory.create();
+                mFilterStages.put(factory, stage);
             }
 
-            if (!mPredicted)
-                mLongitudeTracker.predict(0.0);
+            stage.onEstimate(mEstimate);
+            count++;
+        }
+
+        // Drop the stages of removed factories
+        if (mFilterStages.size() > count)
+            mFilterStages.keySet().retainAll(mFilterStageFactories);
+
+        if (mEstimate.hasCorrection()) {
+
+            mFusion.correctHorizontal(
+                    mEstimate.getLatitude(), mEstimate.getLongitude(), mEstimate.getCorrectionNoise());
+            mEstimate.clearCorrection();
+        }
+    }
+
+    /**
+     * @return True if there is an altitude estimate. Last altitude is not reused once a fix without it arrives.
+     */
+    private boolean hasAltitude() {
+
+        return mFusion.hasAltitudeTracker() && (mLastLocation == null || mLastLocation.hasAltitude());
+    }
+
+    /**
+     * Create a Location object from the working estimate.
+     */
+    private Location createLocation() {
+
+        final Location location = new Location(KALMAN_PROVIDER);
+
+        // Latitude, longitude
+        location.setLatitude(mEstimate.getLatitude());
+        location.setLongitude(mEstimate.getLongitude());
 
-            mLongitudeTracker.update(position, noise);
+        // Altitude
+        if (mEstimate.hasAltitude())
+            location.setAltitude(mEstimate.getAltitude());
 
-            // Altitude
-            if (location.hasAltitude()) {
+        if (isStationary()) {
 
-                position = location.getAltitude();
-                noise = accuracy;
+            // Speed
+            location.setSpeed(0.0f);
+
+        } else if (mLastLocation != null) {
 
-                if (mAltitudeTracker == null) {
+            // Speed
+            if (mLastLocation.hasSpeed())
+                location.setSpeed(mLastLocation.getSpeed());
 
-                    mAltitudeTracker = new Tracker1D(TIME_STEP, ALTITUDE_NOISE);
-                    mAltitudeTracker.setState(position, 0.0, noise);
+            // Bearing
+            if (mLastLocation.hasBearing())
+                location.setBearing(mLastLocation.getBearing());
+        }
+
+        // Accuracy (always has)
+        location.setAccuracy(mEstimate.getAccuracy());
+
+        // Set times
+        location.setTime(System.currentTimeMillis());
+
+        if (Build.VERSION.SDK_INT >= 17)
+            location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+
+        return location;
+    }
+
+    /**
+     * @return True if the device was detected to be standing still.
+     */
+    private boolean isStationary() {
+
+        return mStationaryDetector != null && mStationaryDetector.isStationary();
+    }
+
+    /**
+     * Remember the given fix, and tell whether it was seen recently.
+     */
+    private boolean isDuplicate(Location location) {
+
+        final long time = location.getTime();
+        final double latitude = location.getLatitude();
+        final double longitude = location.getLongitude();
+
+        for (int i = 0; i < RECENT_FIXES; i++) {
+
+            if (mRecentTimes[i] == time && mRecentLatitudes[i] == latitude && mRecentLongitudes[i] == longitude)
+                return true;
+        }
+
+        mRecentTimes[mRecentIndex] = time;
+        mRecentLatitudes[mRecentIndex] = latitude;
+        mRecentLongitudes[mRecentIndex] = longitude;
+        mRecentIndex = (mRecentIndex + 1) % RECENT_FIXES;
+
+        return false;
+    }
+
+    /**
+     * Run the given client callback on the client thread, or right here when delivering to a subscription.
+     */
+    private void postToClient(Runnable runnable) {
+
+        if (Tracing.ENABLED)
+            runnable = Tracing.wrap(Tracing.DELIVER, runnable);
+
+        if (mClientHandler != null)
+            mClientHandler.post(runnable);
+        else
+            runnable.run();
+    }
+
+    /**
+     * Deliver the given estimate to the client, on its thread.
+     */
+    private void deliver(final Location location) {
+
+        // Fixes fused since the last delivery, whose async slices end with this one
+        final int firstFix = mFirstPendingFix;
+        final int lastFix = mFixCount;
+        mFirstPendingFix = mFixCount + 1;
+
+        postToClient(new Runnable() {
+
+            @Override
+            public void run() {
+
+                mClientLocationListener.onLocationChanged(location);
+
+                if (Tracing.ENABLED) {
+
+                    for (int fix = firstFix; fix <= lastFix; fix++)
+                        Tracing.endAsync(Tracing.FIX_TO_ESTIMATE, getFixCookie(fix));
                 }
+            }
+        });
+    }
+
+    /**
+     * @return Async trace cookie of the given fix. Unique among those in flight.
+     */
+    private int getFixCookie(int fix) {
+
+        return mTraceId << 16 | fix & 0xffff;
+    }
+
+    /**
+     * @return Time step of the given time, in the {@link SystemClock#elapsedRealtime()} time base. Ticks fire at the
+     * start of each one.
+     */
+    private long getStep(long realtime) { return realtime / mTickMillis; }
+
+    /**
+     * @return Time until the next tick, in milliseconds.
+     */
+    private long getTickDelay() { return mTickMillis - SystemClock.elapsedRealtime() % mTickMillis; }
+
+    /**
+     * @return Time the given fix was taken, in the {@link SystemClock#elapsedRealtime()} time base, or its arrival
+     * time if unknown.
+     */
+    private static long getFixRealtime(Location location, long arrival) {
+
+        if (Build.VERSION.SDK_INT >= 17 && location.getElapsedRealtimeNanos() > 0)
+            return Math.min(location.getElapsedRealtimeNanos() / 1000000, arrival);
+
+        return arrival;
+    }
 
-                if (!mPredicted)
-                    mAltitudeTracker.predict(0.0);
+    /**
+     * Predict up to the current time step, including any ticks skipped for a lack of demand.
+     */
+    private void predictToNow() {
+
+        mFusion.predictTo(getStep(SystemClock.elapsedRealtime()), hasAltitude());
+    }
+
+    /**
+     * Run the filter stages on the current state, and deliver it.
+     *
+     * @return False if a stage correction left the state bad, and it was reset instead.
+     */
+    private boolean deliverPrediction() {
+
+        updateEstimate();
+        runFilterStages();
+
+        if (!checkHealth())
+            return false;
+
+        publishEstimate();
+
+        // Prepare location
+        final Location location = createLocation();
+
+        // Post the update in the client (UI) thread
+        deliver(location);
+
+        return true;
+    }
+
+    /**
+     * Start over if the state went bad, so garbage is never published.
+     *
+     * @return False if reset.
+     */
+    private boolean checkHealth() {
+
+        if (mFusion.isHealthy())
+            return true;
+
+        reset(RESET_INVALID_STATE);
+        return false;
+    }
 
-                mAltitudeTracker.update(position, noise);
+    /**
+     * Drop the trackers and stop predicting. They are seeded again from the next fix, as on the first one.
+     */
+    private void reset(String reason) {
+
+        Log.w(TAG, "Filter reset: " + reason);
+
+        mFusion.reset();
+
+        if (mStationaryDetector != null)
+            mStationaryDetector.reset();
+
+        if (mOwnHandler != null) {
+
+            mOwnHandler.removeMessages(0);
+            mOwnHandler = null;
+        }
+
+        mSuspendedAt = -1;
+        mInconsistentFixes = 0;
+        mResetCount++;
+        mResetReason = reason;
+
+        postResetStatus(LocationProvider.TEMPORARILY_UNAVAILABLE, reason);
+    }
+
+    private void postResetStatus(final int status, String reason) {
+
+        final Bundle extras = new Bundle();
+        extras.putString(EXTRA_RESET_REASON, reason);
+        extras.putLong(EXTRA_RESET_COUNT, mResetCount);
+
+        postToClient(new Runnable() {
+
+            @Override
+            public void run() {
+
+                mClientLocationListener.onStatusChanged(KALMAN_PROVIDER, status, extras);
             }
+        });
+    }
 
-            // Reset predicted flag
-            mPredicted = false;
+    /**
+     * Stop predicting, and deliver the held position once.
+     */
+    private void enterStationary() {
+
+        mOwnHandler.removeMessages(0);
+        mSuspendedAt = -1;
+
+        final Location location = createLocation();
+
+        deliver(location);
+    }
+
+    private LocationListener mOwnLocationListener = new LocationListener() {
+
+        @Override
+        public void onLocationChanged(Location location) {
+
+            if (Tracing.ENABLED)
+                Tracing.begin(Tracing.FIX);
+
+            try {
+
+                onFix(location);
+
+            } finally {
+
+                if (Tracing.ENABLED)
+                    Tracing.end();
+            }
+        }
+
+        private void onFix(final Location location) {
+
+            // Drop fixes already received through another provider, e.g. our own GPS fixes seen again passively
+            if (isDuplicate(location))
+                return;
 
             // Forward update if requested
             if (mForwardProviderUpdates) {
 
-                mClientHandler.post(new Runnable() {
+                postToClient(new Runnable() {
 
                     @Override
                     public void run() {
@@ -214,18 +811,125 @@ class LooperThread extends Thread {
                 });
             }
 
-            // Update last location
+            // Can't weigh a fix of unknown accuracy
+            if (!location.hasAccuracy()) {
+
+                Log.d(TAG, "Ignoring " + location.getProvider() + " fix without accuracy.");
+                return;
+            }
+
+            ProviderNoise providerNoise = mProviderNoise.get(location.getProvider());
+
+            if (providerNoise == null)
+                providerNoise = ProviderNoise.DEFAULT;
+
+            final float noise = providerNoise.getNoise(location);
+
+            final long realtime = SystemClock.elapsedRealtime();
+            final long uptime = SystemClock.uptimeMillis();
+            final long step = getStep(getFixRealtime(location, realtime));
+
+            // One fix per time step, the first. Trackers take fixes as taken at the start of the step, and fusing
+            // several taken across it, as a 10-20 Hz receiver sends them, would skew the velocity.
+            if (mFusion.isStarted() && step <= mFixStep)
+                return;
+
+            // Watchdog: start over from this fix if the state went stale asleep
+            if (mFusion.isStarted() && (realtime - mLastFixRealtime) - (uptime - mLastFixUptime) > MAX_SLEEP_MILLIS)
+                reset(RESET_SLEEP);
+
+            // Predict up to the time step of the fix, if a tick didn't already, so the fix is weighed against the
+            // state at its time, e.g. after a gap in fixes or ticks skipped for a lack of demand
+            mFusion.predictTo(step, hasAltitude());
+
+            // Watchdog: start over from this fix if the state keeps disagreeing with fixes
+            if (mFusion.isStarted()) {
+
+                if (mFusion.getInnovation(location.getLatitude(), location.getLongitude(), noise) > INNOVATION_GATE) {
+
+                    if (++mInconsistentFixes < INCONSISTENT_FIXES) {
+
+                        Log.d(TAG, "Rejecting " + location.getProvider() + " fix inconsistent with the estimate.");
+                        mRejectedFixCount++;
+                        return;
+                    }
+
+                    reset(RESET_INCONSISTENT_FIXES);
+
+                    // New trackers start at this step
+                    mFusion.predictTo(step, false);
+
+                } else {
+
+                    mInconsistentFixes = 0;
+                }
+            }
+
+            mLastFixRealtime = realtime;
+            mLastFixUptime = uptime;
+
+            // Detect whether standing still
+            final boolean wasStationary = isStationary();
+            final boolean stationary = mStationaryDetector != null && mFusion.isStarted()
+                    && mStationaryDetector.onFix(location.getLatitude(), location.getLongitude(), noise);
+
+            mFixStep = step;
+
+            // Correct trackers
+            mFusion.correct(
+                    location.getLatitude(), location.getLongitude(), location.getAltitude(), location.hasAltitude(),
+                    noise);
+
+            if (stationary)
+                mFusion.correctZeroVelocity(ZERO_VELOCITY_NOISE * mTimeStepSeconds);
+
+            if (!checkHealth())
+                return;
+
+            mFixCount++;
+
+            if (Tracing.ENABLED)
+                Tracing.beginAsync(Tracing.FIX_TO_ESTIMATE, getFixCookie(mFixCount));
+
+            if (mResetReason != null) {
+
+                postResetStatus(LocationProvider.AVAILABLE, mResetReason);
+                mResetReason = null;
+            }
+
+            // Update last location. GPS ones are preferred, since they have speed and bearing.
             if (location.getProvider().equals(LocationManager.GPS_PROVIDER)
-                    || mLastLocation == null || mLastLocation.getProvider().equals(LocationManager.NETWORK_PROVIDER)) {
+                    || mLastLocation == null || !mLastLocation.getProvider().equals(LocationManager.GPS_PROVIDER)) {
 
                 mLastLocation = new Location(location);
             }
 
-            // Enable filter timer if this is our first measurement
+            // Hold the published position while stationary, and notify only on entering
+            if (stationary) {
+
+                if (!wasStationary) {
+
+                    updateEstimate();
+                    publishEstimate();
+                    enterStationary();
+                }
+
+                return;
+            }
+
+            // Publish corrected state
+            updateEstimate();
+            publishEstimate();
+
+            // Enable filter timer if this is our first measurement, or predictions were stopped while stationary
             if (mOwnHandler == null) {
 
                 mOwnHandler = new Handler(mLooper, mOwnHandlerCallback);
-                mOwnHandler.sendEmptyMessageDelayed(0, mMinTimeFilter);
+                mOwnHandler.sendEmptyMessageDelayed(0, getTickDelay());
+
+            } else if (wasStationary) {
+
+                mOwnHandler.sendEmptyMessageDelayed(0, getTickDelay());
             }
         }
 
@@ -234,7 +938,7 @@ class LooperThread extends Thread {
 
             final String finalProvider = provider;
 
-            mClientHandler.post(new Runnable() {
+            postToClient(new Runnable() {
 
                 @Override
                 public void run() {
@@ -249,7 +953,7 @@ class LooperThread extends Thread {
 
             final String finalProvider = provider;
 
-            mClientHandler.post(new Runnable() {
+            postToClient(new Runnable() {
 
                 @Override
                 public void run() {
@@ -264,7 +968,7 @@ class LooperThread extends Thread {
 
             final String finalProvider = provider;
 
-            mClientHandler.post(new Runnable() {
+            postToClient(new Runnable() {
 
                 @Override
                 public void run() {
@@ -277,62 +981,90 @@ class LooperThread extends Thread {
 
 
 
+    private SensorEventListener mAccelerometerListener = new SensorEventListener() {
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+
+            // Resume predictions right away if shaken while stationary. There's no timer to resume after a reset
+            if (mStationaryDetector.onAcceleration(event.values[0], event.values[1], event.values[2])
+                    && mOwnHandler != null) {
+
+                mOwnHandler.sendEmptyMessage(0);
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+    };
+
     private Handler.Callback mOwnHandlerCallback = new Handler.Callback() {
 
         @Override
         public boolean handleMessage(Message msg) {
 
-            // Prepare location
-            final Location location = new Location(KALMAN_PROVIDER);
+            if (Tracing.ENABLED)
+                Tracing.begin(Tracing.TICK);
 
-            // Latitude
-            mLatitudeTracker.predict(0.0);
-            location.setLatitude(mLatitudeTracker.getPosition());
+            try {
 
-            // Longitude
-            mLongitudeTracker.predict(0.0);
-            location.setLongitude(mLongitudeTracker.getPosition());
+                return onTick();
 
-            // Altitude
-            if (mLastLocation.hasAltitude()) {
+            } finally {
 
-                mAltitudeTracker.predict(0.0);
-                location.setAltitude(mAltitudeTracker.getPosition());
+                if (Tracing.ENABLED)
+                    Tracing.end();
             }
+        }
 
-            // Speed
-            if (mLastLocation.hasSpeed())
-                location.setSpeed(mLastLocation.getSpeed());
-
-            // Bearing
-            if (mLastLocation.hasBearing())
-                location.setBearing(mLastLocation.getBearing());
+        private boolean onTick() {
 
-            // Accuracy (always has)
-            location.setAccuracy((float) (mLatitudeTracker.getAccuracy() * DEG_TO_METER));
+            // Without demand, stop predicting until there is some
+            if (mSubscription != null && !mSubscription.hasDemand()) {
 
-            // Set times
-            location.setTime(System.currentTimeMillis());
+                mSuspendedAt = SystemClock.elapsedRealtime();
+                return true;
+            }
 
-            if (Build.VERSION.SDK_INT >= 17)
-                location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+            // Predict trackers, by more than one step if the tick came late
+            predictToNow();
 
-            // Post the update in the client (UI) thread
-            mClientHandler.post(new Runnable() {
+            if (!checkHealth())
+                return true;
 
-                @Override
-                public void run() {
-
-                    mClientLocationListener.onLocationChanged(location);
-                }
-            });
+            // Run stages, publish and deliver predicted state
+            if (!deliverPrediction())
+                return true;
 
             // Enqueue next prediction
             mOwnHandler.removeMessages(0);
-            mOwnHandler.sendEmptyMessageDelayed(0, mMinTimeFilter);
-            mPredicted = true;
+            mOwnHandler.sendEmptyMessageDelayed(0, getTickDelay());
 
             return true;
         }
     };
+
+    private Runnable mDemandRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+
+            if (mSubscription.signalError() || mSuspendedAt < 0)
+                return;
+
+            // Predict the skipped ticks at once, deliver, and keep ticking from there
+            predictToNow();
+
+            if (!checkHealth())
+                return;
+
+            if (!deliverPrediction())
+                return;
+
+            mSuspendedAt = -1;
+
+            mOwnHandler.removeMessages(0);
+            mOwnHandler.sendEmptyMessageDelayed(0, getTickDelay());
+        }
+    };
 }
@@ -0,0 +1,284 @@
+/*
+ * MapMatcher
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.DEG_TO_METER;
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.METER_TO_DEG;
+
+/**
+ * Filter stage that snaps each estimate to the most likely segment of a {@link RoadGraph}.
+ * <p>
+ * Candidate segments near the estimate are looked up in a grid index. A small hidden Markov model over
+ * those candidates chooses the best one: emission probability falls off with the distance from the
+ * estimate to the segment, and transition probability with the mismatch between how far the estimate
+ * moved and how far the snapped position moved, with a penalty for jumping between unconnected segments.
+ * <p>
+ * The snapped position is delivered, and fed back into the filter as a pseudo-measurement.
+ * Nothing is allocated per estimate.
+ */
+public class MapMatcher implements FilterStage {
+
+    /**
+     * Default search radius and feedback noise, in meters.
+     */
+    public static final double DEFAULT_SEARCH_RADIUS = 50.0;
+    public static final double DEFAULT_FEEDBACK_NOISE = 10.0;
+
+    /**
+     * Grid cell size, in degrees (roughly 200 m).
+     */
+    private static final double CELL_SIZE = 0.002;
+
+    /**
+     * Candidates kept among the segments looked up per estimate (the nearest).
+     */
+    private static final int MAX_CANDIDATES = 8;
+
+    /**
+     * Lower bound for the emission standard deviation, in meters.
+     */
+    private static final double MIN_EMISSION_SIGMA = 5.0;
+
+    /**
+     * Scale of the transition distance mismatch, in meters.
+     */
+    private static final double TRANSITION_BETA = 10.0;
+
+    /**
+     * Log-probability penalty for moving between segments that don't share a node.
+     */
+    private static final double DISCONNECTED_PENALTY = Math.log(0.05);
+
+    // Settings
+    private final RoadGraph mGraph;
+    private final GridIndex mIndex;
+    private final double mSearchRadius;
+    private final double mFeedbackNoise;
+
+    // Scratch, large enough for every segment, so lookups are never cut short before the nearest is seen
+    private final int[] mLookup;
+
+    // Candidates of the current and previous steps: segment, snapped position, distance and log-probability
+    private int[] mSegments = new int[MAX_CANDIDATES], mPreviousSegments = new int[MAX_CANDIDATES];
+    private double[] mLatitudes = new double[MAX_CANDIDATES], mPreviousLatitudes = new double[MAX_CANDIDATES];
+    private double[] mLongitudes = new double[MAX_CANDIDATES], mPreviousLongitudes = new double[MAX_CANDIDATES];
+    private double[] mScores = new double[MAX_CANDIDATES], mPreviousScores = new double[MAX_CANDIDATES];
+    private final double[] mDistances = new double[MAX_CANDIDATES];
+    private int mCount, mPreviousCount;
+
+    // Previous estimate, before snapping
+    private double mPreviousLatitude, mPreviousLongitude;
+
+    /**
+     * Creates a map matcher with default settings.
+     *
+     * @param graph Road network to snap to.
+     */
+    public MapMatcher(RoadGraph graph) {
+
+        this(graph, DEFAULT_SEARCH_RADIUS, DEFAULT_FEEDBACK_NOISE);
+    }
+
+    /**
+     * Creates a map matcher.
+     *
+     * @param graph Road network to snap to.
+     * @param searchRadius Estimates farther than this from any segment are not snapped, in meters.
+     * @param feedbackNoise Standard deviation of the snapped position fed back into the filter, in meters.
+     */
+    public MapMatcher(RoadGraph graph, double searchRadius, double feedbackNoise) {
+
+        if (graph == null)
+            throw new IllegalArgumentException("graph can't be null");
+
+        mGraph = graph;
+        mIndex = new GridIndex(graph.getSegmentBounds(), CELL_SIZE);
+        mLookup = new int[graph.getSegmentCount()];
+        mSearchRadius = searchRadius;
+        mFeedbackNoise = feedbackNoise;
+    }
+
+    @Override
+    public void onEstimate(KalmanEstimate estimate) {
+
+        final double latitude = estimate.getLatitude();
+        final double longitude = estimate.getLongitude();
+        final double cos = Math.cos(Math.toRadians(latitude));
+
+        findCandidates(latitude, longitude, cos);
+
+        // Off road: restart the model
+        if (mCount == 0) {
+
+            mPreviousCount = 0;
+            return;
+        }
+
+        // Emission and transition
+        final double sigma = Math.max(estimate.getAccuracy(), MIN_EMISSION_SIGMA);
+        final double moved = distance(mPreviousLatitude, mPreviousLongitude, latitude, longitude, cos);
+
+        int best = 0;
+
+        for (int i = 0; i < mCount; i++) {
+
+            double emission = mDistances[i] / sigma;
+            double score = -0.5 * emission * emission;
+
+            if (mPreviousCount > 0) {
+
+                double transition = Double.NEGATIVE_INFINITY;
+
+                for (int j = 0; j < mPreviousCount; j++) {
+
+                    double snappedMoved = distance(
+                            mPreviousLatitudes[j], mPreviousLongitudes[j], mLatitudes[i], mLongitudes[i], cos);
+
+                    double candidate = mPreviousScores[j] - Math.abs(snappedMoved - moved) / TRANSITION_BETA;
+
+                    if (!mGraph.connected(mPreviousSegments[j], mSegments[i]))
+                        candidate += DISCONNECTED_PENALTY;
+
+                    transition = Math.max(transition, candidate);
+                }
+
+                score += transition;
+            }
+
+            mScores[i] = score;
+
+            if (score > mScores[best])
+                best = i;
+        }
+
+        // Normalize, so scores don't drift
+        final double max = mScores[best];
+
+        for (int i = 0; i < mCount; i++)
+            mScores[i] -= max;
+
+        estimate.correct(mLatitudes[best], mLongitudes[best], mFeedbackNoise);
+
+        // Current step becomes previous
+        swap();
+        mPreviousLatitude = latitude;
+        mPreviousLongitude = longitude;
+    }
+
+    /**
+     * Find the nearest segments within the search radius, sorted by distance.
+     */
+    private void findCandidates(double latitude, double longitude, double cos) {
+
+        final double latitudeRadius = mSearchRadius * METER_TO_DEG;
+        final double longitudeRadius = latitudeRadius / cos;
+
+        final int found = mIndex.query(
+                latitude - latitudeRadius, longitude - longitudeRadius,
+                latitude + latitudeRadius, longitude + longitudeRadius,
+                mLookup);
+
+        mCount = 0;
+
+        for (int k = 0; k < found; k++) {
+
+            final int segment = mLookup[k];
+
+            // Local planar coordinates in meters, origin at the estimate
+            final int from = mGraph.mFrom[segment], to = mGraph.mTo[segment];
+            final double ax = (mGraph.mLongitudes[from] - longitude) * cos * DEG_TO_METER;
+            final double ay = (mGraph.mLatitudes[from] - latitude) * DEG_TO_METER;
+            final double dx = (mGraph.mLongitudes[to] - longitude) * cos * DEG_TO_METER - ax;
+            final double dy = (mGraph.mLatitudes[to] - latitude) * DEG_TO_METER - ay;
+
+            // Project origin onto the segment
+            final double length2 = dx * dx + dy * dy;
+            double t = length2 > 0.0 ? -(ax * dx + ay * dy) / length2 : 0.0;
+            t = Math.max(0.0, Math.min(1.0, t));
+
+            final double px = ax + t * dx;
+            final double py = ay + t * dy;
+            final double distance = Math.sqrt(px * px + py * py);
+
+            if (distance > mSearchRadius)
+                continue;
+
+            // Insert sorted, dropping the farthest when full
+            int i = Math.min(mCount, MAX_CANDIDATES - 1);
+
+            if (mCount == MAX_CANDIDATES && distance >= mDistances[i])
+                continue;
+
+            for (; i > 0 && mDistances[i - 1] > distance; i--) {
+
+                mSegments[i] = mSegments[i - 1];
+                mLatitudes[i] = mLatitudes[i - 1];
+                mLongitudes[i] = mLongitudes[i - 1];
+                mDistances[i] = mDistances[i - 1];
+            }
+
+            mSegments[i] = segment;
+            mLatitudes[i] = latitude + py * METER_TO_DEG;
+            mLongitudes[i] = longitude + px * METER_TO_DEG / cos;
+            mDistances[i] = distance;
+
+            if (mCount < MAX_CANDIDATES)
+                mCount++;
+        }
+    }
+
+    private void swap() {
+
+        int[] segments = mPreviousSegments;
+        mPreviousSegments = mSegments;
+        mSegments = segments;
+
+        double[] latitudes = mPreviousLatitudes;
+        mPreviousLatitudes = mLatitudes;
+        mLatitudes = latitudes;
+
+        double[] longitudes = mPreviousLongitudes;
+        mPreviousLongitudes = mLongitudes;
+        mLongitudes = longitudes;
+
+        double[] scores = mPreviousScores;
+        mPreviousScores = mScores;
+        mScores = scores;
+
+        mPreviousCount = mCount;
+    }
+
+    /**
+     * Planar distance between two nearby positions, in meters.
+     */
+    private static double distance(
+            double latitude1, double longitude1, double latitude2, double longitude2, double cos)
+    {
+        final double dx = (longitude2 - longitude1) * cos * DEG_TO_METER;
+        final double dy = (latitude2 - latitude1) * DEG_TO_METER;
+
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
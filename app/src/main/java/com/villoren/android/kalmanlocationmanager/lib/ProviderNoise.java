@@ -0,0 +1,63 @@
+/*
+ * ProviderNoise
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import android.location.Location;
+
+/**
+ * How much to trust the fixes of one provider.
+ * <p>
+ * Reported accuracies aren't equally honest across providers: network ones are often optimistic, and some report
+ * implausibly small values. Fixes are fused with their reported accuracy scaled, and never below a minimum.
+ */
+class ProviderNoise {
+
+    /**
+     * Used for providers without settings: reported accuracy, but at least one meter.
+     */
+    static final ProviderNoise DEFAULT = new ProviderNoise(1.0f, 1.0f);
+
+    private final float mScale;
+    private final float mMinimum;
+
+    /**
+     * @param scale Factor applied to reported accuracies.
+     * @param minimum Minimum accuracy, in meters.
+     */
+    ProviderNoise(float scale, float minimum) {
+
+        mScale = scale;
+        mMinimum = minimum;
+    }
+
+    /**
+     * @param location A fix with accuracy.
+     * @return Standard deviation to fuse the fix with, in meters.
+     */
+    float getNoise(Location location) {
+
+        return Math.max(location.getAccuracy() * mScale, mMinimum);
+    }
+}
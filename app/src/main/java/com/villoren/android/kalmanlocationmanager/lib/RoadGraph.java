@@ -0,0 +1,211 @@
+/*
+ * RoadGraph
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Road network made of straight segments between nodes, for {@link MapMatcher}.
+ * <p>
+ * Loaded from a plain text file, one record per line:
+ * <pre>
+ * # comment
+ * n &lt;latitude&gt; &lt;longitude&gt;      node, numbered from 0 in order of appearance
+ * w &lt;node&gt; &lt;node&gt; [&lt;node&gt; ...]   way, a polyline through the given nodes
+ * </pre>
+ */
+public class RoadGraph {
+
+    /**
+     * Node coordinates, in degrees.
+     */
+    final double[] mLatitudes, mLongitudes;
+
+    /**
+     * Segment end nodes.
+     */
+    final int[] mFrom, mTo;
+
+    private RoadGraph(double[] latitudes, double[] longitudes, int[] from, int[] to) {
+
+        mLatitudes = latitudes;
+        mLongitudes = longitudes;
+        mFrom = from;
+        mTo = to;
+    }
+
+    /**
+     * Loads a road graph from a local file.
+     *
+     * @param file File in the format described above.
+     * @return The road graph.
+     * @throws IOException If the file can't be read or is malformed.
+     */
+    public static RoadGraph load(File file) throws IOException {
+
+        Reader reader = new FileReader(file);
+
+        try {
+
+            return load(reader);
+
+        } finally {
+
+            reader.close();
+        }
+    }
+
+    /**
+     * Loads a road graph from a reader.
+     *
+     * @param reader Text in the format described above. Not closed.
+     * @return The road graph.
+     * @throws IOException If the text can't be read or is malformed.
+     */
+    public static RoadGraph load(Reader reader) throws IOException {
+
+        BufferedReader lines = new BufferedReader(reader);
+
+        double[] latitudes = new double[256], longitudes = new double[256];
+        int[] from = new int[256], to = new int[256];
+        int nodes = 0, segments = 0;
+
+        int lineNumber = 0;
+        String line;
+
+        while ((line = lines.readLine()) != null) {
+
+            lineNumber++;
+            line = line.trim();
+
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] fields = line.split("\\s+");
+
+            try {
+
+                if (fields[0].equals("n") && fields.length == 3) {
+
+                    if (nodes == latitudes.length) {
+
+                        latitudes = Arrays.copyOf(latitudes, 2 * nodes);
+                        longitudes = Arrays.copyOf(longitudes, 2 * nodes);
+                    }
+
+                    latitudes[nodes] = Double.parseDouble(fields[1]);
+                    longitudes[nodes] = Double.parseDouble(fields[2]);
+                    nodes++;
+
+                } else if (fields[0].equals("w") && fields.length >= 3) {
+
+                    int previous = node(fields[1], nodes);
+
+                    for (int i = 2; i < fields.length; i++) {
+
+                        int current = node(fields[i], nodes);
+
+                        if (segments == from.length) {
+
+                            from = Arrays.copyOf(from, 2 * segments);
+                            to = Arrays.copyOf(to, 2 * segments);
+                        }
+
+                        from[segments] = previous;
+                        to[segments] = current;
+                        segments++;
+
+                        previous = current;
+                    }
+
+                } else {
+
+                    throw new IOException("Unknown record at line " + lineNumber);
+                }
+
+            } catch (NumberFormatException e) {
+
+                throw new IOException("Malformed number at line " + lineNumber, e);
+            }
+        }
+
+        return new RoadGraph(
+                Arrays.copyOf(latitudes, nodes), Arrays.copyOf(longitudes, nodes),
+                Arrays.copyOf(from, segments), Arrays.copyOf(to, segments));
+    }
+
+    private static int node(String field, int nodes) throws IOException {
+
+        int node = Integer.parseInt(field);
+
+        if (node < 0 || node >= nodes)
+            throw new IOException("Way references undefined node " + node);
+
+        return node;
+    }
+
+    /**
+     * @return Number of nodes.
+     */
+    public int getNodeCount() { return mLatitudes.length; }
+
+    /**
+     * @return Number of segments.
+     */
+    public int getSegmentCount() { return mFrom.length; }
+
+    /**
+     * @return Bounding box of each segment, as expected by {@link GridIndex}.
+     */
+    double[] getSegmentBounds() {
+
+        double[] bounds = new double[4 * mFrom.length];
+
+        for (int i = 0; i < mFrom.length; i++) {
+
+            bounds[4 * i] = Math.min(mLatitudes[mFrom[i]], mLatitudes[mTo[i]]);
+            bounds[4 * i + 1] = Math.min(mLongitudes[mFrom[i]], mLongitudes[mTo[i]]);
+            bounds[4 * i + 2] = Math.max(mLatitudes[mFrom[i]], mLatitudes[mTo[i]]);
+            bounds[4 * i + 3] = Math.max(mLongitudes[mFrom[i]], mLongitudes[mTo[i]]);
+        }
+
+        return bounds;
+    }
+
+    /**
+     * @return True if both segments are the same or share a node.
+     */
+    boolean connected(int a, int b) {
+
+        return a == b
+                || mFrom[a] == mFrom[b] || mFrom[a] == mTo[b]
+                || mTo[a] == mFrom[b] || mTo[a] == mTo[b];
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * SeqLock
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sequence lock over a fixed number of 64-bit slots.
+ * <p>
+ * A single writer publishes whole arrays of values. Any number of readers can copy a consistent
+ * set of values without blocking the writer and without allocating; a reader that overlaps a write
+ * simply retries.
+ */
+final class SeqLock {
+
+    /**
+     * Slot holding the sequence number. Odd while a write is in progress, zero if never written.
+     */
+    private static final int SEQUENCE = 0;
+
+    /**
+     * Sequence number in slot 0, values in slots 1..size.
+     */
+    private final AtomicLongArray mSlots;
+
+    /**
+     * Number of value slots.
+     */
+    private final int mSize;
+
+    /**
+     * Creates a lock with the given number of value slots.
+     *
+     * @param size Number of values published on each write.
+     */
+    SeqLock(int size) {
+
+        mSize = size;
+        mSlots = new AtomicLongArray(size + 1);
+    }
+
+    /**
+     * Publish values. Must always be called from the same thread.
+     *
+     * @param values Array of at least <i>size</i> values.
+     */
+    void write(long[] values) {
+
+        long sequence = mSlots.get(SEQUENCE);
+
+        mSlots.set(SEQUENCE, sequence + 1);
+
+        for (int i = 0; i < mSize; i++)
+            mSlots.set(i + 1, values[i]);
+
+        mSlots.set(SEQUENCE, sequence + 2);
+    }
+
+    /**
+     * Copy the last published values. May be called from any thread.
+     *
+     * @param values Array of at least <i>size</i> values.
+     * @return False if nothing was published yet, in which case values is left untouched.
+     */
+    boolean read(long[] values) {
+
+        while (true) {
+
+            long before = mSlots.get(SEQUENCE);
+
+            if (before == 0)
+                return false;
+
+            // Writer in progress
+            if ((before & 1) != 0)
+                continue;
+
+            for (int i = 0; i < mSize; i++)
+                values[i] = mSlots.get(i + 1);
+
+            if (mSlots.get(SEQUENCE) == before)
+                return true;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * StateStore
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Saves the last filter state in the shared preferences, so the next session can warm-start from it.
+ * <p>
+ * The state is packed in a single Base64 string: positions as doubles, everything else as floats.
+ */
+class StateStore {
+
+    /**
+     * Shared preferences file and key.
+     */
+    private static final String PREFERENCES_NAME = "KalmanLocationManager";
+    private static final String KEY_STATE = "state";
+
+    /**
+     * Packed size: time, altitude flag, positions, four floats per dimension, accuracy.
+     */
+    private static final int PACKED_SIZE = 8 + 1 + 3 * 8 + 3 * 4 * 4 + 4;
+
+    /**
+     * Logger tag.
+     */
+    private static final String TAG = StateStore.class.getSimpleName();
+
+    private final SharedPreferences mPreferences;
+
+    /**
+     * Maximum age of a state to be restored, in milliseconds.
+     */
+    private final long mMaxAge;
+
+    /**
+     * @param context Context to get the shared preferences from.
+     * @param maxAge Maximum age of a state to be restored, in milliseconds.
+     */
+    StateStore(Context context, long maxAge) {
+
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mMaxAge = maxAge;
+    }
+
+    /**
+     * Save the given estimate, replacing any previously saved one.
+     *
+     * @param estimate Estimate to save. Its time is converted to wall clock time.
+     */
+    void save(KalmanEstimate estimate) {
+
+        long age = (System.nanoTime() - estimate.getTimeNanos()) / 1000000;
+
+        ByteBuffer buffer = ByteBuffer.allocate(PACKED_SIZE);
+        buffer.putLong(System.currentTimeMillis() - age);
+        buffer.put((byte) (estimate.hasAltitude() ? 1 : 0));
+
+        for (int axis = KalmanEstimate.LATITUDE; axis <= KalmanEstimate.ALTITUDE; axis++) {
+
+            buffer.putDouble(estimate.getPosition(axis));
+            buffer.putFloat((float) estimate.getVelocity(axis));
+            buffer.putFloat((float) estimate.getPositionVariance(axis));
+            buffer.putFloat((float) estimate.getCovariance(axis));
+            buffer.putFloat((float) estimate.getVelocityVariance(axis));
+        }
+
+        buffer.putFloat(estimate.getAccuracy());
+
+        mPreferences.edit()
+                .putString(KEY_STATE, Base64.encodeToString(buffer.array(), Base64.NO_WRAP))
+            .apply();
+    }
+
+    /**
+     * Load the saved estimate, if any and not too old.
+     *
+     * @param estimate Destination estimate. Its time is set to now.
+     * @return Age of the loaded estimate in milliseconds, or -1 if there was none to load.
+     */
+    long load(KalmanEstimate estimate) {
+
+        String packed = mPreferences.getString(KEY_STATE, null);
+
+        if (packed == null)
+            return -1;
+
+        try {
+
+            ByteBuffer buffer = ByteBuffer.wrap(Base64.decode(packed, Base64.NO_WRAP));
+
+            long age = System.currentTimeMillis() - buffer.getLong();
+
+            if (age < 0 || age > mMaxAge)
+                return -1;
+
+            estimate.setHasAltitude(buffer.get() != 0);
+
+            for (int axis = KalmanEstimate.LATITUDE; axis <= KalmanEstimate.ALTITUDE; axis++) {
+
+                double position = buffer.getDouble();
+                estimate.setAxis(axis, position,
+                        buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+            }
+
+            estimate.setAccuracy(buffer.getFloat());
+            estimate.setTimeNanos(System.nanoTime());
+
+            return age;
+
+        } catch (IllegalArgumentException e) {
+
+            Log.w(TAG, "Discarding malformed saved state", e);
+
+        } catch (BufferUnderflowException e) {
+
+            Log.w(TAG, "Discarding truncated saved state", e);
+        }
+
+        return -1;
+    }
+}
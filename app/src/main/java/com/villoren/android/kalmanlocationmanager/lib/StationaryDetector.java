@@ -0,0 +1,241 @@
+/*
+ * StationaryDetector
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.DEG_TO_METER;
+
+/**
+ * Decides whether the device is standing still, by testing fixes against a stationary hypothesis and, optionally,
+ * by how much the accelerometer readings vary.
+ * <p>
+ * Fixes are averaged into a candidate position. Each new fix is tested against it: its squared distance, normalized
+ * by the fix accuracy and the uncertainty of the average, follows a chi-square distribution if the device is still.
+ * These innovations are independent, so their sum is tested too, which catches steady motion that no single fix
+ * gives away. A few fixes in a row passing both tests make the device stationary, and a failing one starts over. While
+ * stationary, two fixes in a row outside the gate, or a shaking accelerometer, make the device move again.
+ * <p>
+ * The velocity estimated by the filter is far too noisy to tell a parked car from a slow one, hence the separate test.
+ */
+class StationaryDetector {
+
+    /**
+     * Fixes in a row within the gate needed to become stationary, and outside it to stop being so.
+     */
+    private static final int STILL_FIXES = 8;
+    private static final int MOVING_FIXES = 2;
+
+    /**
+     * Gate for squared normalized distances: 99% quantile of a chi-square with two degrees of freedom.
+     */
+    private static final double GATE = 9.21;
+
+    /**
+     * Gates for the sum of the first n squared normalized distances: 99% quantiles of a chi-square with 2.n degrees
+     * of freedom.
+     */
+    private static final double[] SUM_GATE = { 0.0, 9.21, 13.28, 16.81, 20.09, 23.21, 26.22, 29.14 };
+
+    /**
+     * Variance of the acceleration magnitude below which the device may be still, and above which it is surely
+     * moving, in (m/s^2)^2.
+     */
+    private static final double STILL_ACCELERATION_VARIANCE = 0.01;
+    private static final double MOVING_ACCELERATION_VARIANCE = 0.25;
+
+    /**
+     * Weight of each accelerometer reading in the running mean and variance.
+     */
+    private static final double ACCELERATION_WEIGHT = 0.1;
+
+    // Settings
+    private final boolean mUseAccelerometer;
+
+    // State
+    private boolean mStationary;
+    private int mStillFixes, mMovingFixes;
+
+    /**
+     * Sum of the squared normalized distances of the fixes averaged so far.
+     */
+    private double mDistanceSum;
+
+    /**
+     * Average of the fixes since the device was last seen moving, and its variance in squared meters.
+     */
+    private double mLatitude, mLongitude, mVariance;
+
+    /**
+     * Running mean of the acceleration magnitude and of its square.
+     */
+    private double mAccelerationMean, mAccelerationMeanSquare;
+    private boolean mHasAcceleration;
+
+    /**
+     * @param useAccelerometer Whether accelerometer readings will be fed through
+     *                         {@link #onAcceleration(float, float, float)}. Once they are, a steady accelerometer is
+     *                         required to become stationary, and a shaking one ends it.
+     */
+    StationaryDetector(boolean useAccelerometer) {
+
+        mUseAccelerometer = useAccelerometer;
+    }
+
+    /**
+     * Test a fix.
+     *
+     * @param latitude Latitude, in degrees.
+     * @param longitude Longitude, in degrees.
+     * @param accuracy Fix accuracy, in meters.
+     * @return True if the device is stationary.
+     */
+    boolean onFix(double latitude, double longitude, double accuracy) {
+
+        final double r = accuracy * accuracy;
+
+        boolean still = false;
+
+        if (mStillFixes > 0) {
+
+            // Squared distance to the average, over its variance: y.S^(-1).y
+            double dLatitude = (latitude - mLatitude) * DEG_TO_METER;
+            double dLongitude = (longitude - mLongitude) * DEG_TO_METER * Math.cos(Math.toRadians(latitude));
+
+            double distance = (dLatitude * dLatitude + dLongitude * dLongitude) / (mVariance + r);
+
+            still = distance < GATE;
+
+            if (!mStationary) {
+
+                mDistanceSum += distance;
+                still &= mDistanceSum < SUM_GATE[mStillFixes];
+            }
+        }
+
+        if (mStationary) {
+
+            mMovingFixes = still ? 0 : mMovingFixes + 1;
+
+            if (mMovingFixes >= MOVING_FIXES || isShaking())
+                setMoving();
+
+        } else if (!isSteady()) {
+
+            mStillFixes = 0;
+            return false;
+        }
+
+        if (still) {
+
+            // Inverse variance weighted average
+            double weight = mVariance / (mVariance + r);
+
+            mLatitude += weight * (latitude - mLatitude);
+            mLongitude += weight * (longitude - mLongitude);
+            mVariance = mVariance * r / (mVariance + r);
+            mStillFixes++;
+
+        } else if (!mStationary) {
+
+            // Start over from this fix
+            mLatitude = latitude;
+            mLongitude = longitude;
+            mVariance = r;
+            mStillFixes = 1;
+            mDistanceSum = 0.0;
+        }
+
+        if (mStillFixes >= STILL_FIXES)
+            mStationary = true;
+
+        return mStationary;
+    }
+
+    /**
+     * Feed an accelerometer reading.
+     *
+     * @return True if the device was stationary and is not anymore.
+     */
+    boolean onAcceleration(float x, float y, float z) {
+
+        final double magnitude = Math.sqrt(x * x + y * y + z * z);
+
+        if (mHasAcceleration) {
+
+            mAccelerationMean += ACCELERATION_WEIGHT * (magnitude - mAccelerationMean);
+            mAccelerationMeanSquare += ACCELERATION_WEIGHT * (magnitude * magnitude - mAccelerationMeanSquare);
+
+        } else {
+
+            mAccelerationMean = magnitude;
+            mAccelerationMeanSquare = magnitude * magnitude;
+            mHasAcceleration = true;
+        }
+
+        if (mStationary && isShaking()) {
+
+            setMoving();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return True if the device is stationary.
+     */
+    boolean isStationary() { return mStationary; }
+
+    boolean usesAccelerometer() { return mUseAccelerometer; }
+
+    /**
+     * Forget the fixes seen so far, e.g. when the filter starts over.
+     */
+    void reset() { setMoving(); }
+
+    private void setMoving() {
+
+        mStationary = false;
+        mStillFixes = 0;
+        mMovingFixes = 0;
+    }
+
+    private double getAccelerationVariance() {
+
+        return mAccelerationMeanSquare - mAccelerationMean * mAccelerationMean;
+    }
+
+    /**
+     * @return False if the accelerometer says the device is moving. True without readings.
+     */
+    private boolean isSteady() {
+
+        return !mHasAcceleration || getAccelerationVariance() < STILL_ACCELERATION_VARIANCE;
+    }
+
+    private boolean isShaking() {
+
+        return mHasAcceleration && getAccelerationVariance() > MOVING_ACCELERATION_VARIANCE;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * TilePrefetcher
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tells which map tiles to fetch ahead of time, so they are ready before the camera gets there.
+ * <p>
+ * Projects the filter's position, velocity and covariance some seconds ahead, and hints the Web Mercator (XYZ)
+ * tiles covering that corridor at the given zoom: along the estimated path, and as wide as its uncertainty. The
+ * corridor is cut short where it would get longer than {@link #MAX_CORRIDOR_LENGTH} tiles, at high speeds or zoom
+ * levels. Tiles already hinted are remembered in a bounded LRU, so each is only hinted once while it stays there.
+ * <p>
+ * Not thread safe. Meant to be called on each estimate, from the thread receiving them.
+ */
+public class TilePrefetcher {
+
+    /**
+     * Receiver of prefetch hints.
+     */
+    public interface Listener {
+
+        /**
+         * @param zoom Zoom level.
+         * @param x Tile column, from 0 at longitude -180.
+         * @param y Tile row, from 0 at the northern edge.
+         */
+        void onPrefetch(int zoom, int x, int y);
+    }
+
+    /**
+     * Highest zoom level supported, so tile keys fit in a long.
+     */
+    public static final int MAX_ZOOM = 28;
+
+    /**
+     * Web Mercator limit, in degrees.
+     */
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    /**
+     * Standard deviations of the corridor half-width.
+     */
+    private static final double SIGMAS = 2.0;
+
+    /**
+     * Maximum corridor half-width, in tiles, so a poor estimate at a high zoom doesn't hint a whole city.
+     */
+    private static final double MAX_HALF_WIDTH = 1.5;
+
+    /**
+     * Projected positions are sampled at most this far apart, in tiles. Each sample covers at least half that
+     * around it, so no tile the path crosses is skipped.
+     */
+    private static final double MAX_SAMPLE_DISTANCE = 0.5;
+
+    /**
+     * Longest corridor hinted, in tiles. The look-ahead is shortened beyond it, rather than sampled more sparsely.
+     */
+    public static final double MAX_CORRIDOR_LENGTH = 32.0;
+
+    private final Listener mListener;
+    private final double mLookAhead;
+
+    /**
+     * Keys of the tiles already hinted, least recently hinted first.
+     */
+    private final Map<Long, Boolean> mHinted;
+
+    /**
+     * @param listener Receiver of hints, called from {@link #prefetch(KalmanEstimate, int)}.
+     * @param lookAhead How far ahead to project the estimate, in seconds.
+     * @param capacity Number of hinted tiles to remember. About the size of the tile cache being filled.
+     */
+    public TilePrefetcher(Listener listener, double lookAhead, final int capacity) {
+
+        if (listener == null)
+            throw new IllegalArgumentException("listener can't be null");
+
+        if (!(lookAhead >= 0.0) || capacity <= 0)
+            throw new IllegalArgumentException("lookAhead can't be negative, and capacity must be positive");
+
+        mListener = listener;
+        mLookAhead = lookAhead;
+
+        mHinted = new LinkedHashMap<Long, Boolean>(capacity, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Hint the tiles of the corridor ahead of the given estimate not hinted yet, nearest first.
+     *
+     * @param estimate Estimate to project, e.g. from
+     *                 {@link KalmanLocationManager#getEstimate(android.location.LocationListener, KalmanEstimate)
+     *                 getEstimate}.
+     * @param zoom Zoom level of the tiles, usually the camera's, rounded down.
+     * @return Number of tiles hinted.
+     */
+    public int prefetch(KalmanEstimate estimate, int zoom) {
+
+        if (zoom < 0 || zoom > MAX_ZOOM)
+            throw new IllegalArgumentException("zoom must be between 0 and " + MAX_ZOOM);
+
+        final int tiles = 1 << zoom;
+        final double latitude = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, estimate.getLatitude()));
+
+        // Degrees to tiles, linearized at the current position. Rows grow southwards
+        final double lonScale = tiles / 360.0;
+        final double latScale = -lonScale / Math.cos(Math.toRadians(latitude));
+
+        final double x = (estimate.getLongitude() + 180.0) * lonScale;
+        final double sinLatitude = Math.sin(Math.toRadians(latitude));
+        final double y = (0.5 - Math.log((1.0 + sinLatitude) / (1.0 - sinLatitude)) / (4.0 * Math.PI)) * tiles;
+
+        final double vx = estimate.getVelocity(KalmanEstimate.LONGITUDE) * lonScale;
+        final double vy = estimate.getVelocity(KalmanEstimate.LATITUDE) * latScale;
+
+        // Bounded corridor length, sampled densely enough not to skip a tile
+        final double speed = Math.sqrt(vx * vx + vy * vy);
+        final double lookAhead = speed * mLookAhead > MAX_CORRIDOR_LENGTH ? MAX_CORRIDOR_LENGTH / speed : mLookAhead;
+        final int samples = (int) Math.ceil(speed * lookAhead / MAX_SAMPLE_DISTANCE);
+
+        int hinted = 0;
+
+        for (int i = 0; i <= samples; i++) {
+
+            final double t = samples > 0 ? lookAhead * i / samples : 0.0;
+
+            // x = F.x, P = F.P.F', as in KalmanEstimate.extrapolate. Wide enough to cover up to the next sample
+            final double halfWidthX = Math.max(MAX_SAMPLE_DISTANCE / 2.0,
+                    getHalfWidth(estimate, KalmanEstimate.LONGITUDE, t, lonScale));
+            final double halfWidthY = Math.max(MAX_SAMPLE_DISTANCE / 2.0,
+                    getHalfWidth(estimate, KalmanEstimate.LATITUDE, t, latScale));
+            final double cx = x + vx * t, cy = y + vy * t;
+
+            final int minY = Math.max(0, (int) Math.floor(cy - halfWidthY));
+            final int maxY = Math.min(tiles - 1, (int) Math.floor(cy + halfWidthY));
+            final int minX = (int) Math.floor(cx - halfWidthX), maxX = (int) Math.floor(cx + halfWidthX);
+
+            for (int ty = minY; ty <= maxY; ty++) {
+
+                for (int tx = minX; tx <= maxX; tx++) {
+
+                    // Wrap around the antimeridian
+                    final int wrapped = ((tx % tiles) + tiles) % tiles;
+
+                    if (mHinted.put(getKey(zoom, wrapped, ty), Boolean.TRUE) == null) {
+
+                        mListener.onPrefetch(zoom, wrapped, ty);
+                        hinted++;
+                    }
+                }
+            }
+        }
+
+        return hinted;
+    }
+
+    /**
+     * Forget every tile hinted so far, e.g. after the tile cache was cleared.
+     */
+    public void clear() {
+
+        mHinted.clear();
+    }
+
+    /**
+     * @return Corridor half-width along the given axis after t seconds, in tiles.
+     */
+    private static double getHalfWidth(KalmanEstimate estimate, int axis, double t, double scale) {
+
+        final double variance = estimate.getPositionVariance(axis) + 2.0 * t * estimate.getCovariance(axis)
+                + t * t * estimate.getVelocityVariance(axis);
+
+        // NaN fails the comparison too
+        if (!(variance > 0.0))
+            return 0.0;
+
+        return Math.min(MAX_HALF_WIDTH, SIGMAS * Math.sqrt(variance) * Math.abs(scale));
+    }
+
+    private static Long getKey(int zoom, int x, int y) {
+
+        return (long) zoom << 56 | (long) x << 28 | y;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Tracing
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opt-in tracing of the fix and prediction paths.
+ * <p>
+ * Off unless the {@value #PROPERTY} system property is "true" when this class is loaded, e.g. set with -D on a
+ * JVM. The first library class to run loads it, so on Android the property must be set with
+ * {@link System#setProperty(String, String)} before anything else in this package is touched: first thing in
+ * {@code Application.onCreate()}, from a BuildConfig field, as the demo app's DemoApplication does. Set any later,
+ * tracing stays off, and so does the {@link android.os.Trace} backend installed by {@link KalmanLocationManager}.
+ * <p>
+ * Every call site checks the static final {@link #ENABLED} first, so a disabled tracer costs nothing once compiled.
+ * Events go to a {@link Backend}: {@link android.os.Trace} sections on Android (see {@link AndroidTraceBackend}),
+ * JFR events on a JVM.
+ * <p>
+ * Android-free, so the filter core can be traced wherever it runs.
+ */
+public final class Tracing {
+
+    /**
+     * System property enabling tracing.
+     */
+    public static final String PROPERTY = "kalmanlocationmanager.tracing";
+
+    /**
+     * Whether tracing is on. Fixed when this class is loaded, see above for the ordering this implies.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean(PROPERTY);
+
+    /**
+     * Slice names.
+     */
+    public static final String FIX = "KLM fix", TICK = "KLM tick", PREDICT = "KLM predict", CORRECT = "KLM correct",
+            DELIVER = "KLM deliver";
+
+    /**
+     * Name of the async slices from each fix to the first estimate delivered after it.
+     */
+    public static final String FIX_TO_ESTIMATE = "KLM fix to estimate";
+
+    /**
+     * Receiver of trace events. Must be thread safe: events come from every filter thread.
+     */
+    public interface Backend {
+
+        /**
+         * Begin a slice on the calling thread. Slices nest.
+         */
+        void begin(String name);
+
+        /**
+         * End the innermost slice begun on the calling thread.
+         */
+        void end();
+
+        /**
+         * Begin a slice that may end on another thread.
+         *
+         * @param cookie Identifies the slice among those of the same name in flight.
+         */
+        void beginAsync(String name, int cookie);
+
+        /**
+         * End a slice begun with {@link #beginAsync(String, int)}.
+         */
+        void endAsync(String name, int cookie);
+    }
+
+    private static volatile Backend sBackend;
+
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    private Tracing() {}
+
+    /**
+     * Install the backend to send events to, unless one was already installed. Ignored while disabled.
+     *
+     * @param backend Backend to install.
+     */
+    public static synchronized void installBackend(Backend backend) {
+
+        if (ENABLED && sBackend == null)
+            sBackend = backend;
+    }
+
+    // Call sites are expected to check ENABLED first
+
+    /**
+     * @return A process-wide unique id, e.g. to keep the async cookies of several threads apart.
+     */
+    static int nextId() { return sNextId.incrementAndGet(); }
+
+    static void begin(String name) {
+
+        Backend backend = sBackend;
+
+        if (backend != null)
+            backend.begin(name);
+    }
+
+    static void end() {
+
+        Backend backend = sBackend;
+
+        if (backend != null)
+            backend.end();
+    }
+
+    static void beginAsync(String name, int cookie) {
+
+        Backend backend = sBackend;
+
+        if (backend != null)
+            backend.beginAsync(name, cookie);
+    }
+
+    static void endAsync(String name, int cookie) {
+
+        Backend backend = sBackend;
+
+        if (backend != null)
+            backend.endAsync(name, cookie);
+    }
+
+    /**
+     * @return The given runnable, run within a slice of the given name.
+     */
+    static Runnable wrap(final String name, final Runnable runnable) {
+
+        return new Runnable() {
+
+            @Override
+            public void run() {
+
+                begin(name);
+
+                try {
+
+                    runnable.run();
+
+                } finally {
+
+                    end();
+                }
+            }
+        };
+    }
+}
@@ -29,6 +29,22 @@ package com.villoren.android.kalmanlocationmanager.lib;
  */
 class Tracker1D {
 
+    /**
+     * Relative change of the gains, between consecutive updates, below which they are deemed converged. Loose enough
+     * for longitude, whose noise drifts slightly with latitude.
+     */
+    private static final double GAIN_TOLERANCE = 1.0e-5;
+
+    /**
+     * Consecutive converged updates needed to switch to the steady state path.
+     */
+    private static final int CONVERGED_UPDATES = 3;
+
+    /**
+     * Relative change of the measurement variance that leaves the steady state path.
+     */
+    private static final double NOISE_TOLERANCE = 1.0e-3;
+
     // Settings
 
     /**
@@ -51,6 +67,28 @@ class Tracker1D {
      */
     private double mPa, mPb, mPc, mPd;
 
+    /**
+     * Whether the steady state path may be taken, see {@link #setSteadyState(boolean)}.
+     */
+    private boolean mSteadyStateEnabled;
+
+    /**
+     * Whether on the steady state path: gains and covariances below are fixed, and only the state is computed.
+     */
+    private boolean mSteady;
+
+    /**
+     * Predictions since the last update, consecutive converged updates, and the last update's variance and gains.
+     */
+    private int mPredictions, mConvergedUpdates;
+    private double mr, mKa, mKb;
+
+    /**
+     * Steady state covariance, after prediction and after update.
+     */
+    private double mPriorPa, mPriorPb, mPriorPc, mPriorPd;
+    private double mPosteriorPa, mPosteriorPb, mPosteriorPc, mPosteriorPd;
+
     /**
      * Creates a tracker.
      *
@@ -101,8 +139,87 @@ class Tracker1D {
         mPb = n2 * mt3d2;
         mPc = mPb;
         mPd = n2 * mt2;
+
+        leaveSteadyState();
+    }
+
+    /**
+     * Reset the filter to the given state and covariance.
+     *
+     * @param position
+     * @param velocity
+     * @param positionVariance
+     * @param covariance
+     * @param velocityVariance
+     */
+    public void setState(
+            double position, double velocity, double positionVariance, double covariance, double velocityVariance)
+    {
+        // State vector
+        mXa = position;
+        mXb = velocity;
+
+        // Covariance
+        mPa = positionVariance;
+        mPb = covariance;
+        mPc = covariance;
+        mPd = velocityVariance;
+
+        leaveSteadyState();
+    }
+
+    /**
+     * Grow the covariance as if the given number of steps had been predicted, without changing the state.
+     * <p>
+     * Used when the state is stale, to reflect how far it may have drifted meanwhile.
+     *
+     * @param steps Number of time steps elapsed. Need not be an integer.
+     */
+    public void inflate(double steps) {
+
+        // F(n) = [1 n.t; 0 1]
+        double nt = steps * mt;
+
+        // P = F(n).P.F(n)'
+        double Pdnt = mPd * nt;
+        double Pa = mPa + nt * (mPb + mPc + Pdnt);
+        double Pb = mPb + Pdnt;
+        double Pc = mPc + Pdnt;
+
+        // Q(n) = sum of F(k).Q.F(k)' for k in [0, n)
+        double n2 = steps * steps;
+        mPa = Pa + mQa * (4.0 * n2 * steps - steps) / 3.0;
+        mPb = Pb + mQb * n2;
+        mPc = Pc + mQc * n2;
+        mPd = mPd + mQd * steps;
+
+        leaveSteadyState();
     }
 
+    /**
+     * Enable or disable the steady state path. Disabled by default.
+     * <p>
+     * With a fixed time step, one prediction per update and a constant measurement noise, the covariance converges
+     * to a fixed point after a few dozen steps, and so do the gains. Once they stop changing, the tracker runs as an
+     * alpha-beta filter with those gains, skipping all covariance arithmetic, and the covariance getters return the
+     * converged values. Any other sequence of calls, or a change of the measurement noise, goes back to the full
+     * path right away.
+     *
+     * @param enabled Whether to take the steady state path once converged.
+     */
+    public void setSteadyState(boolean enabled) {
+
+        mSteadyStateEnabled = enabled;
+
+        if (!enabled)
+            leaveSteadyState();
+    }
+
+    /**
+     * @return True if on the steady state path.
+     */
+    public boolean isSteady() { return mSteady; }
+
     /**
      * Update (correct) with the given measurement.
      *
@@ -116,6 +233,26 @@ class Tracker1D {
         //  y   =  z   -   H  . x
         double y = position - mXa;
 
+        if (mSteady) {
+
+            if (mPredictions == 1 && Math.abs(r - mr) <= NOISE_TOLERANCE * mr) {
+
+                // x = x + K.y, with the converged gains
+                mXa = mXa + mKa * y;
+                mXb = mXb + mKb * y;
+
+                mPa = mPosteriorPa;
+                mPb = mPosteriorPb;
+                mPc = mPosteriorPc;
+                mPd = mPosteriorPd;
+
+                mPredictions = 0;
+                return;
+            }
+
+            leaveSteadyState();
+        }
+
         // S = H.P.H' + R
         double s = mPa + r;
         double si = 1.0 / s;
@@ -124,6 +261,31 @@ class Tracker1D {
         double Ka = mPa * si;
         double Kb = mPc * si;
 
+        // Detect convergence
+        if (mSteadyStateEnabled) {
+
+            if (mPredictions == 1 && Math.abs(r - mr) <= NOISE_TOLERANCE * mr
+                    && Math.abs(Ka - mKa) <= GAIN_TOLERANCE * Math.abs(Ka)
+                    && Math.abs(Kb - mKb) <= GAIN_TOLERANCE * Math.abs(Kb)) {
+
+                mConvergedUpdates++;
+
+            } else {
+
+                mConvergedUpdates = 0;
+            }
+
+            mr = r;
+            mKa = Ka;
+            mKb = Kb;
+            mPriorPa = mPa;
+            mPriorPb = mPb;
+            mPriorPc = mPc;
+            mPriorPd = mPd;
+        }
+
+        mPredictions = 0;
+
         // x = x + K.y
         mXa = mXa + Ka * y;
         mXb = mXb + Kb * y;
@@ -138,6 +300,54 @@ class Tracker1D {
         mPb = Pb;
         mPc = Pc;
         mPd = Pd;
+
+        if (mConvergedUpdates >= CONVERGED_UPDATES) {
+
+            mSteady = true;
+            mPosteriorPa = Pa;
+            mPosteriorPb = Pb;
+            mPosteriorPc = Pc;
+            mPosteriorPd = Pd;
+        }
+    }
+
+    /**
+     * Update (correct) with the given velocity measurement, e.g. a zero-velocity pseudo-measurement.
+     *
+     * @param velocity
+     * @param noise
+     */
+    public void updateVelocity(double velocity, double noise) {
+
+        leaveSteadyState();
+
+        double r = noise * noise;
+
+        //  y   =  z   -   H  . x, with H = [0 1]
+        double y = velocity - mXb;
+
+        // S = H.P.H' + R
+        double s = mPd + r;
+        double si = 1.0 / s;
+
+        // K = P.H'.S^(-1)
+        double Ka = mPb * si;
+        double Kb = mPd * si;
+
+        // x = x + K.y
+        mXa = mXa + Ka * y;
+        mXb = mXb + Kb * y;
+
+        // P = P - K.(H.P)
+        double Pa = mPa - Ka * mPc;
+        double Pb = mPb - Ka * mPd;
+        double Pc = mPc - Kb * mPc;
+        double Pd = mPd - Kb * mPd;
+
+        mPa = Pa;
+        mPb = Pb;
+        mPc = Pc;
+        mPd = Pd;
     }
 
     /**
@@ -151,6 +361,23 @@ class Tracker1D {
         mXa = mXa + mXb * mt + acceleration * mt2d2;
         mXb = mXb + acceleration * mt;
 
+        mPredictions++;
+
+        if (mSteady) {
+
+            if (mPredictions == 1) {
+
+                mPa = mPriorPa;
+                mPb = mPriorPb;
+                mPc = mPriorPc;
+                mPd = mPriorPd;
+                return;
+            }
+
+            // Several predictions per update: carry on from the covariance after the first one
+            leaveSteadyState();
+        }
+
         // P = F.P.F' + Q
         double Pdt = mPd * mt;
         double FPFtb = mPb + Pdt;
@@ -164,6 +391,23 @@ class Tracker1D {
         mPd = FPFtd + mQd;
     }
 
+    private void leaveSteadyState() {
+
+        mSteady = false;
+        mConvergedUpdates = 0;
+    }
+
+    /**
+     * @return False if the state isn't finite, or the covariance isn't positive definite.
+     */
+    public boolean isValid() {
+
+        // NaN fails every comparison
+        return Math.abs(mXa) < Double.POSITIVE_INFINITY && Math.abs(mXb) < Double.POSITIVE_INFINITY
+                && mPa > 0.0 && mPa < Double.POSITIVE_INFINITY && mPd > 0.0 && mPd < Double.POSITIVE_INFINITY
+                && mPb * mPc <= mPa * mPd;
+    }
+
     /**
      * @return Estimated position.
      */
@@ -174,6 +418,21 @@ class Tracker1D {
      */
     public double getVelocity() { return mXb; }
 
+    /**
+     * @return Variance of the estimated position.
+     */
+    public double getPositionVariance() { return mPa; }
+
+    /**
+     * @return Covariance between estimated position and velocity.
+     */
+    public double getCovariance() { return mPb; }
+
+    /**
+     * @return Variance of the estimated velocity.
+     */
+    public double getVelocityVariance() { return mPd; }
+
     /**
      * @return Accuracy
      */
@@ -0,0 +1,279 @@
+/*
+ * TrajectoryCompressor
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.DEG_TO_METER;
+
+/**
+ * Filter stage that compresses the stream of estimates on the fly, and writes the surviving points to a stream.
+ * <p>
+ * Points are dropped while they lie on a straight line from the last written point, moving away from it: every
+ * dropped point is within the tolerance of the segment between the written points around it. This is checked by
+ * intersecting, for each new point, the cone of directions that keeps it within tolerance (the "swinging door"), and
+ * by tracking the farthest distance reached, so a U-turn back along the line keeps its turning point. Memory is
+ * constant per track. The tolerance is the estimated horizontal standard deviation, bounded by the given limits.
+ * Altitude is stored with each written point, but doesn't break lines.
+ * <p>
+ * Written points are delta encoded, see {@link TrajectoryDecoder} to read them back.
+ * <p>
+ * Estimates and {@link #flush()} may come from different threads.
+ */
+public class TrajectoryCompressor implements FilterStage {
+
+    /**
+     * Default tolerance limits, in meters.
+     */
+    public static final double DEFAULT_MIN_TOLERANCE = 2.0;
+    public static final double DEFAULT_MAX_TOLERANCE = 25.0;
+
+    /**
+     * A point is always written after this long, in milliseconds, even if not moving.
+     */
+    private static final long MAX_INTERVAL = 60000;
+
+    /**
+     * Logger tag.
+     */
+    private static final String TAG = TrajectoryCompressor.class.getSimpleName();
+
+    // Settings
+    private final TrajectoryEncoding mEncoding;
+    private final double mMinTolerance, mMaxTolerance;
+
+    // Last written point
+    private boolean mStarted;
+    private double mAnchorLatitude, mAnchorLongitude, mAnchorCos;
+    private long mAnchorTime;
+
+    // Last seen point, written when the line breaks
+    private boolean mHasPrevious;
+    private double mPreviousLatitude, mPreviousLongitude, mPreviousAltitude;
+    private boolean mPreviousHasAltitude;
+    private float mPreviousAccuracy;
+    private long mPreviousTime;
+
+    // Allowed directions from the anchor, in radians relative to mConeOrigin
+    private boolean mHasCone;
+    private double mConeOrigin, mConeLow, mConeHigh;
+
+    // Farthest distance from the anchor so far, in meters
+    private double mFarthest;
+
+    // Counters
+    private int mReadCount, mWrittenCount;
+
+    /**
+     * Creates a compressor with default tolerance limits.
+     *
+     * @param out Stream to write points to. Buffering is recommended.
+     */
+    public TrajectoryCompressor(OutputStream out) {
+
+        this(out, DEFAULT_MIN_TOLERANCE, DEFAULT_MAX_TOLERANCE);
+    }
+
+    /**
+     * Creates a compressor.
+     *
+     * @param out Stream to write points to. Buffering is recommended.
+     * @param minTolerance Minimum tolerance, in meters.
+     * @param maxTolerance Maximum tolerance, in meters.
+     */
+    public TrajectoryCompressor(OutputStream out, double minTolerance, double maxTolerance) {
+
+        if (out == null)
+            throw new IllegalArgumentException("out can't be null");
+
+        mEncoding = new TrajectoryEncoding(out);
+        mMinTolerance = minTolerance;
+        mMaxTolerance = maxTolerance;
+    }
+
+    @Override
+    public synchronized void onEstimate(KalmanEstimate estimate) {
+
+        if (mEncoding.hasFailed())
+            return;
+
+        mReadCount++;
+
+        final double latitude = estimate.getLatitude();
+        final double longitude = estimate.getLongitude();
+        final long time = System.currentTimeMillis();
+
+        if (!mStarted) {
+
+            write(latitude, longitude, estimate.getAltitude(), estimate.hasAltitude(), estimate.getAccuracy(), time);
+            return;
+        }
+
+        // Tolerance from the position covariance
+        final double cos = Math.cos(Math.toRadians(latitude));
+        final double sigma = DEG_TO_METER * Math.sqrt(Math.max(
+                estimate.getPositionVariance(KalmanEstimate.LATITUDE),
+                estimate.getPositionVariance(KalmanEstimate.LONGITUDE) * cos * cos));
+
+        final double tolerance = Math.max(mMinTolerance, Math.min(mMaxTolerance, sigma));
+
+        // Keep the time resolution bounded
+        if (time - mAnchorTime > MAX_INTERVAL) {
+
+            write(latitude, longitude, estimate.getAltitude(), estimate.hasAltitude(), estimate.getAccuracy(), time);
+            return;
+        }
+
+        // Line breaks: previous point becomes the new anchor, current point starts a new cone
+        if (!narrowCone(latitude, longitude, tolerance)) {
+
+            write(mPreviousLatitude, mPreviousLongitude, mPreviousAltitude, mPreviousHasAltitude,
+                    mPreviousAccuracy, mPreviousTime);
+
+            narrowCone(latitude, longitude, tolerance);
+        }
+
+        mHasPrevious = true;
+        mPreviousLatitude = latitude;
+        mPreviousLongitude = longitude;
+        mPreviousAltitude = estimate.getAltitude();
+        mPreviousHasAltitude = estimate.hasAltitude();
+        mPreviousAccuracy = estimate.getAccuracy();
+        mPreviousTime = time;
+    }
+
+    /**
+     * Writes the last seen point, if it wasn't, and flushes the stream. Call after the last estimate, e.g. after
+     * {@link KalmanLocationManager#removeUpdates(android.location.LocationListener) removeUpdates}.
+     */
+    public synchronized void flush() {
+
+        if (mHasPrevious) {
+
+            write(mPreviousLatitude, mPreviousLongitude, mPreviousAltitude, mPreviousHasAltitude,
+                    mPreviousAccuracy, mPreviousTime);
+        }
+
+        try {
+
+            mEncoding.flush();
+
+        } catch (IOException e) {
+
+            Log.e(TAG, "Could not flush trajectory", e);
+        }
+    }
+
+    /**
+     * @return Number of estimates received.
+     */
+    public int getReadCount() { return mReadCount; }
+
+    /**
+     * @return Number of points written.
+     */
+    public int getWrittenCount() { return mWrittenCount; }
+
+    /**
+     * Checks the given point lies within the allowed directions from the anchor, and no closer to it than the
+     * farthest point within tolerance. Then narrows the directions to keep the point within tolerance.
+     *
+     * @return False if the point lies outside the allowed directions or turned back, leaving them unchanged.
+     */
+    private boolean narrowCone(double latitude, double longitude, double tolerance) {
+
+        final double x = (longitude - mAnchorLongitude) * mAnchorCos * DEG_TO_METER;
+        final double y = (latitude - mAnchorLatitude) * DEG_TO_METER;
+        final double distance = Math.sqrt(x * x + y * y);
+
+        // Turned back towards the anchor, the segment to here would cut off the farthest point
+        if (distance < mFarthest - tolerance)
+            return false;
+
+        mFarthest = Math.max(mFarthest, distance);
+
+        // Too close to the anchor to constrain the direction
+        if (distance <= tolerance)
+            return true;
+
+        final double direction = Math.atan2(y, x);
+        final double halfWidth = Math.asin(tolerance / distance);
+
+        if (!mHasCone) {
+
+            mHasCone = true;
+            mConeOrigin = direction;
+            mConeLow = -halfWidth;
+            mConeHigh = halfWidth;
+            return true;
+        }
+
+        // Direction relative to the cone origin, in (-pi, pi]
+        double relative = direction - mConeOrigin;
+
+        if (relative > Math.PI)
+            relative -= 2.0 * Math.PI;
+        else if (relative <= -Math.PI)
+            relative += 2.0 * Math.PI;
+
+        if (relative < mConeLow || relative > mConeHigh)
+            return false;
+
+        mConeLow = Math.max(mConeLow, relative - halfWidth);
+        mConeHigh = Math.min(mConeHigh, relative + halfWidth);
+        return true;
+    }
+
+    /**
+     * Write a point and make it the new anchor.
+     */
+    private void write(
+            double latitude, double longitude, double altitude, boolean hasAltitude, float accuracy, long time)
+    {
+        try {
+
+            mEncoding.write(time, latitude, longitude, altitude, hasAltitude, accuracy);
+            mWrittenCount++;
+
+        } catch (IOException e) {
+
+            Log.e(TAG, "Could not write trajectory, stopping", e);
+            mEncoding.fail();
+        }
+
+        mStarted = true;
+        mAnchorLatitude = latitude;
+        mAnchorLongitude = longitude;
+        mAnchorCos = Math.cos(Math.toRadians(latitude));
+        mAnchorTime = time;
+
+        mHasPrevious = false;
+        mHasCone = false;
+        mFarthest = 0.0;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * TrajectoryDecoder
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.villoren.android.kalmanlocationmanager.lib.TrajectoryEncoding.ACCURACY_SCALE;
+import static com.villoren.android.kalmanlocationmanager.lib.TrajectoryEncoding.ALTITUDE_SCALE;
+import static com.villoren.android.kalmanlocationmanager.lib.TrajectoryEncoding.DEGREE_SCALE;
+import static com.villoren.android.kalmanlocationmanager.lib.TrajectoryEncoding.FLAG_ALTITUDE;
+
+/**
+ * Reads back the points written by a {@link TrajectoryCompressor}, one at a time.
+ * <p>
+ * Each point is a record of a flags byte followed by varints (little-endian base 128), signed ones zigzag encoded:
+ * <ul>
+ * <li>Time in milliseconds, delta from the previous point.</li>
+ * <li>Latitude and longitude in 1e-7 degrees, deltas from the previous point.</li>
+ * <li>Only if flag 1 is set: altitude in decimeters, delta from the previous point with altitude.</li>
+ * <li>Accuracy in decimeters, unsigned.</li>
+ * </ul>
+ * The first point is a delta from zero.
+ */
+public class TrajectoryDecoder {
+
+    private final InputStream mIn;
+
+    // Current point, in fixed point
+    private long mTime, mLatitude, mLongitude, mAltitude, mAccuracy;
+    private boolean mHasAltitude;
+
+    /**
+     * @param in Stream to read points from. Buffering is recommended.
+     */
+    public TrajectoryDecoder(InputStream in) {
+
+        mIn = in;
+    }
+
+    /**
+     * Reads the next point.
+     *
+     * @return False at the end of the stream.
+     * @throws IOException If the stream can't be read or ends in the middle of a point.
+     */
+    public boolean next() throws IOException {
+
+        final int flags = mIn.read();
+
+        if (flags < 0)
+            return false;
+
+        mTime += getSigned();
+        mLatitude += getSigned();
+        mLongitude += getSigned();
+
+        mHasAltitude = (flags & FLAG_ALTITUDE) != 0;
+
+        if (mHasAltitude)
+            mAltitude += getSigned();
+
+        mAccuracy = getUnsigned();
+
+        return true;
+    }
+
+    /**
+     * @return Time of the current point, in milliseconds since the epoch.
+     */
+    public long getTime() { return mTime; }
+
+    /**
+     * @return Latitude of the current point, in degrees.
+     */
+    public double getLatitude() { return mLatitude / DEGREE_SCALE; }
+
+    /**
+     * @return Longitude of the current point, in degrees.
+     */
+    public double getLongitude() { return mLongitude / DEGREE_SCALE; }
+
+    /**
+     * @return True if the current point has an altitude.
+     */
+    public boolean hasAltitude() { return mHasAltitude; }
+
+    /**
+     * @return Altitude of the current point, in meters. Only meaningful if {@link #hasAltitude()}.
+     */
+    public double getAltitude() { return mAltitude / ALTITUDE_SCALE; }
+
+    /**
+     * @return Accuracy of the current point, in meters.
+     */
+    public float getAccuracy() { return (float) (mAccuracy / ACCURACY_SCALE); }
+
+    private long getSigned() throws IOException {
+
+        final long value = getUnsigned();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long getUnsigned() throws IOException {
+
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+
+            final int b = mIn.read();
+
+            if (b < 0)
+                throw new EOFException("Truncated trajectory point");
+
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("Malformed trajectory varint");
+    }
+}
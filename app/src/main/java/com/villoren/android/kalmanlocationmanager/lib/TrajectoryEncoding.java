@@ -0,0 +1,127 @@
+/*
+ * TrajectoryEncoding
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes trajectory points in the format read by {@link TrajectoryDecoder}. Nothing is allocated per point.
+ */
+class TrajectoryEncoding {
+
+    /**
+     * Fixed point scales.
+     */
+    static final double DEGREE_SCALE = 1.0e7;
+    static final double ALTITUDE_SCALE = 10.0;
+    static final double ACCURACY_SCALE = 10.0;
+
+    /**
+     * Record flags.
+     */
+    static final int FLAG_ALTITUDE = 1;
+
+    /**
+     * Longest record: flags, plus five varints of up to ten bytes.
+     */
+    private static final int MAX_RECORD_SIZE = 1 + 5 * 10;
+
+    private final OutputStream mOut;
+    private final byte[] mBuffer = new byte[MAX_RECORD_SIZE];
+    private boolean mFailed;
+
+    // Last written values, to encode deltas against
+    private long mTime, mLatitude, mLongitude, mAltitude;
+
+    TrajectoryEncoding(OutputStream out) {
+
+        mOut = out;
+    }
+
+    void write(long time, double latitude, double longitude, double altitude, boolean hasAltitude, float accuracy)
+            throws IOException
+    {
+        final long fixedLatitude = Math.round(latitude * DEGREE_SCALE);
+        final long fixedLongitude = Math.round(longitude * DEGREE_SCALE);
+
+        int size = 0;
+        mBuffer[size++] = (byte) (hasAltitude ? FLAG_ALTITUDE : 0);
+
+        size = putSigned(time - mTime, size);
+        size = putSigned(fixedLatitude - mLatitude, size);
+        size = putSigned(fixedLongitude - mLongitude, size);
+
+        if (hasAltitude) {
+
+            final long fixedAltitude = Math.round(altitude * ALTITUDE_SCALE);
+            size = putSigned(fixedAltitude - mAltitude, size);
+            mAltitude = fixedAltitude;
+        }
+
+        size = putUnsigned(Math.round(accuracy * ACCURACY_SCALE), size);
+
+        mOut.write(mBuffer, 0, size);
+
+        mTime = time;
+        mLatitude = fixedLatitude;
+        mLongitude = fixedLongitude;
+    }
+
+    void flush() throws IOException {
+
+        mOut.flush();
+    }
+
+    /**
+     * Stop writing, after an error.
+     */
+    void fail() { mFailed = true; }
+
+    boolean hasFailed() { return mFailed; }
+
+    /**
+     * Zigzag, then varint.
+     */
+    private int putSigned(long value, int offset) {
+
+        return putUnsigned((value << 1) ^ (value >> 63), offset);
+    }
+
+    /**
+     * Little-endian base 128.
+     */
+    private int putUnsigned(long value, int offset) {
+
+        while ((value & ~0x7FL) != 0) {
+
+            mBuffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        mBuffer[offset++] = (byte) value;
+        return offset;
+    }
+}
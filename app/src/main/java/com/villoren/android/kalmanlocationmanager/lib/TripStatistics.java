@@ -0,0 +1,271 @@
+/*
+ * TripStatistics
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import static com.villoren.android.kalmanlocationmanager.lib.LocationFusion.DEG_TO_METER;
+
+/**
+ * Running statistics of the trip since location updates were requested: distance, moving time, maximum speed and
+ * elevation changes.
+ * <p>
+ * Accumulated by the filter thread in constant time per estimate, so no history is kept. Summing the steps between
+ * estimates would add up their noise as distance, and overestimate it several times when walking. Instead, the
+ * path is sampled at anchor points: distance is only added once the estimate moves away from the last anchor by
+ * more than a few standard deviations of both positions, so the threshold follows the current accuracy, and a
+ * noisy estimate standing still adds no distance. Altitude is sampled the same way, and maximum speed is measured
+ * over windows of several seconds. Estimates too inaccurate to tell where the device is, such as the inflated state
+ * restored on a warm start, are skipped, and the first anchor waits for the filter to converge. An anchor is moved,
+ * without adding distance, once the estimate becomes much more accurate than it.
+ * <p>
+ * Meant to be allocated once and reused for every query, see
+ * {@link KalmanLocationManager#getTripStatistics(android.location.LocationListener, TripStatistics)
+ * getTripStatistics}.
+ */
+public class TripStatistics {
+
+    /**
+     * Below this speed, in meters per second, the device isn't considered to be moving.
+     */
+    private static final double MIN_MOVING_SPEED = 0.5;
+
+    /**
+     * A squared displacement must exceed its variance by this factor to be significant (four standard deviations).
+     * Tested on every estimate, so lower values let noise through while standing still.
+     */
+    private static final double SIGNIFICANCE = 16.0;
+
+    /**
+     * Maximum speed is measured over at least this time, in nanoseconds, to average out noise.
+     */
+    private static final long SPEED_WINDOW_NANOS = 10000000000L;
+
+    /**
+     * Estimates with a worse accuracy, in meters, are neither anchored on nor measured from.
+     */
+    private static final double MAX_ACCURACY = 100.0;
+
+    /**
+     * Slots.
+     */
+    private static final int DISTANCE = 0, MOVING_TIME = 1, ELAPSED_TIME = 2, MAX_SPEED = 3;
+    private static final int ELEVATION_GAIN = 4, ELEVATION_LOSS = 5;
+
+    /**
+     * Total number of slots.
+     */
+    static final int SIZE = ELEVATION_LOSS + 1;
+
+    /**
+     * Raw slots. Doubles are stored as their long bits, so the statistics can go through a {@link SeqLock}.
+     */
+    final long[] mSlots = new long[SIZE];
+
+    /**
+     * Last horizontal anchor: position in degrees, variance in meters squared, time in the
+     * {@link System#nanoTime()} time base. Not published. Latitude is NaN before the first accurate estimate.
+     */
+    private double mAnchorLatitude = Double.NaN, mAnchorLongitude, mAnchorVariance;
+    private long mAnchorTimeNanos;
+
+    /**
+     * Start of the current maximum speed window, same units.
+     */
+    private double mWindowLatitude, mWindowLongitude, mWindowVariance;
+    private long mWindowTimeNanos;
+
+    /**
+     * Last vertical anchor, in meters and meters squared. NaN if altitude wasn't tracked.
+     */
+    private double mAnchorAltitude = Double.NaN, mAnchorAltitudeVariance;
+
+    /**
+     * Time of the first estimate, in the {@link System#nanoTime()} time base. Zero before it.
+     */
+    private long mStartTimeNanos;
+
+    /**
+     * @return Distance travelled, in meters.
+     */
+    public double getDistance() { return get(DISTANCE); }
+
+    /**
+     * @return Time spent moving, in seconds.
+     */
+    public double getMovingTime() { return get(MOVING_TIME); }
+
+    /**
+     * @return Time since the first estimate, in seconds.
+     */
+    public double getElapsedTime() { return get(ELAPSED_TIME); }
+
+    /**
+     * @return Maximum speed sustained for several seconds, in meters per second.
+     */
+    public double getMaxSpeed() { return get(MAX_SPEED); }
+
+    /**
+     * @return Average speed while moving, in meters per second. Zero if never moved.
+     */
+    public double getAverageMovingSpeed() {
+
+        double movingTime = getMovingTime();
+
+        return movingTime > 0.0 ? getDistance() / movingTime : 0.0;
+    }
+
+    /**
+     * @return Total ascent, in meters. Zero if altitude isn't tracked.
+     */
+    public double getElevationGain() { return get(ELEVATION_GAIN); }
+
+    /**
+     * @return Total descent, in meters, as a positive value. Zero if altitude isn't tracked.
+     */
+    public double getElevationLoss() { return get(ELEVATION_LOSS); }
+
+    /**
+     * Account for the given estimate.
+     *
+     * @param estimate Current filter state.
+     */
+    void accumulate(KalmanEstimate estimate) {
+
+        final long timeNanos = estimate.getTimeNanos();
+        final double latitude = estimate.getLatitude();
+        final double longitude = estimate.getLongitude();
+
+        // Position variance in meters squared
+        final double cos = Math.cos(Math.toRadians(latitude));
+        final double variance = (estimate.getPositionVariance(KalmanEstimate.LATITUDE)
+                + estimate.getPositionVariance(KalmanEstimate.LONGITUDE) * cos * cos) * DEG_TO_METER * DEG_TO_METER;
+
+        if (mStartTimeNanos == 0)
+            mStartTimeNanos = timeNanos;
+        else
+            set(ELAPSED_TIME, (timeNanos - mStartTimeNanos) / 1.0e9);
+
+        // Not converged yet, or lost track: the position may be far off
+        if (estimate.getAccuracy() > MAX_ACCURACY)
+            return;
+
+        if (Double.isNaN(mAnchorLatitude)) {
+
+            setAnchor(latitude, longitude, variance, timeNanos);
+            setWindow(latitude, longitude, variance, timeNanos);
+
+        } else {
+
+            // Displacement from the anchor, in meters
+            final double north = (latitude - mAnchorLatitude) * DEG_TO_METER;
+            final double east = (longitude - mAnchorLongitude) * DEG_TO_METER * cos;
+            final double distance2 = north * north + east * east;
+
+            if (distance2 > SIGNIFICANCE * (variance + mAnchorVariance)) {
+
+                final double distance = Math.sqrt(distance2);
+                final double time = (timeNanos - mAnchorTimeNanos) / 1.0e9;
+                final double speed = distance / time;
+
+                set(DISTANCE, get(DISTANCE) + distance);
+
+                // Slow segments are mostly standing still before leaving: their time doesn't count as moving
+                if (speed >= MIN_MOVING_SPEED)
+                    set(MOVING_TIME, get(MOVING_TIME) + time);
+
+                setAnchor(latitude, longitude, variance, timeNanos);
+
+            } else if (SIGNIFICANCE * variance < mAnchorVariance) {
+
+                // Converged since anchoring, e.g. right after a warm start: same place as far as can be told,
+                // known much better now
+                setAnchor(latitude, longitude, variance, mAnchorTimeNanos);
+            }
+
+            if (timeNanos - mWindowTimeNanos >= SPEED_WINDOW_NANOS) {
+
+                final double windowNorth = (latitude - mWindowLatitude) * DEG_TO_METER;
+                final double windowEast = (longitude - mWindowLongitude) * DEG_TO_METER * cos;
+
+                // Debiased: noise alone makes the displacement positive on average
+                final double windowDistance2 = windowNorth * windowNorth + windowEast * windowEast
+                        - variance - mWindowVariance;
+                final double speed = windowDistance2 > 0.0
+                        ? Math.sqrt(windowDistance2) / ((timeNanos - mWindowTimeNanos) / 1.0e9) : 0.0;
+
+                if (speed > get(MAX_SPEED))
+                    set(MAX_SPEED, speed);
+
+                setWindow(latitude, longitude, variance, timeNanos);
+            }
+        }
+
+        if (estimate.hasAltitude())
+            accumulateAltitude(
+                    estimate.getAltitude(), estimate.getPositionVariance(KalmanEstimate.ALTITUDE));
+    }
+
+    private void accumulateAltitude(double altitude, double variance) {
+
+        if (Double.isNaN(mAnchorAltitude)) {
+
+            mAnchorAltitude = altitude;
+            mAnchorAltitudeVariance = variance;
+            return;
+        }
+
+        final double climb = altitude - mAnchorAltitude;
+
+        if (climb * climb > SIGNIFICANCE * (variance + mAnchorAltitudeVariance)) {
+
+            if (climb > 0.0)
+                set(ELEVATION_GAIN, get(ELEVATION_GAIN) + climb);
+            else
+                set(ELEVATION_LOSS, get(ELEVATION_LOSS) - climb);
+
+            mAnchorAltitude = altitude;
+            mAnchorAltitudeVariance = variance;
+        }
+    }
+
+    private void setAnchor(double latitude, double longitude, double variance, long timeNanos) {
+
+        mAnchorLatitude = latitude;
+        mAnchorLongitude = longitude;
+        mAnchorVariance = variance;
+        mAnchorTimeNanos = timeNanos;
+    }
+
+    private void setWindow(double latitude, double longitude, double variance, long timeNanos) {
+
+        mWindowLatitude = latitude;
+        mWindowLongitude = longitude;
+        mWindowVariance = variance;
+        mWindowTimeNanos = timeNanos;
+    }
+
+    private double get(int slot) { return Double.longBitsToDouble(mSlots[slot]); }
+
+    private void set(int slot, double value) { mSlots[slot] = Double.doubleToRawLongBits(value); }
+}
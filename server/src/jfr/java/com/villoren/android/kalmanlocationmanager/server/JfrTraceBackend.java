@@ -0,0 +1,121 @@
+/*
+ * JfrTraceBackend
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.server;
+
+import com.villoren.android.kalmanlocationmanager.lib.Tracing;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Sends trace events to Java Flight Recorder, as custom events with a duration.
+ * <p>
+ * Needs JDK 11 or later, so it is built apart from the server and loaded by name when tracing is enabled.
+ */
+class JfrTraceBackend implements Tracing.Backend {
+
+    @Name("kalmanlocationmanager.Slice")
+    @Label("Filter Slice")
+    @Category("Kalman Location Manager")
+    static class SliceEvent extends Event {
+
+        @Label("Name")
+        String name;
+    }
+
+    @Name("kalmanlocationmanager.AsyncSlice")
+    @Label("Filter Async Slice")
+    @Category("Kalman Location Manager")
+    static class AsyncSliceEvent extends Event {
+
+        @Label("Name")
+        String name;
+
+        @Label("Cookie")
+        int cookie;
+    }
+
+    /**
+     * Slices begun on each thread, innermost first.
+     */
+    private final ThreadLocal<ArrayDeque<SliceEvent>> mSlices = new ThreadLocal<ArrayDeque<SliceEvent>>() {
+
+        @Override
+        protected ArrayDeque<SliceEvent> initialValue() {
+
+            return new ArrayDeque<SliceEvent>();
+        }
+    };
+
+    /**
+     * Async slices in flight, by name and cookie.
+     */
+    private final Map<String, AsyncSliceEvent> mAsyncSlices = new ConcurrentHashMap<String, AsyncSliceEvent>();
+
+    @Override
+    public void begin(String name) {
+
+        SliceEvent event = new SliceEvent();
+        event.name = name;
+        event.begin();
+
+        mSlices.get().push(event);
+    }
+
+    @Override
+    public void end() {
+
+        SliceEvent event = mSlices.get().poll();
+
+        if (event != null)
+            event.commit();
+    }
+
+    @Override
+    public void beginAsync(String name, int cookie) {
+
+        AsyncSliceEvent event = new AsyncSliceEvent();
+        event.name = name;
+        event.cookie = cookie;
+        event.begin();
+
+        mAsyncSlices.put(name + '#' + cookie, event);
+    }
+
+    @Override
+    public void endAsync(String name, int cookie) {
+
+        AsyncSliceEvent event = mAsyncSlices.remove(name + '#' + cookie);
+
+        if (event != null)
+            event.commit();
+    }
+}
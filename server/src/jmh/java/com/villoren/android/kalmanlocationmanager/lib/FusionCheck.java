@@ -0,0 +1,267 @@
+/*
+ * FusionCheck
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.lib;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Checks that {@link LocationFusion} estimates the right speed when fed the way the filter threads feed it.
+ * <p>
+ * In the library package, so it can reach the pseudo-measurements filter stages feed back.
+ * <p>
+ * Usage: FusionCheck
+ */
+public class FusionCheck {
+
+    private static final double DEG_TO_METER = LocationFusion.DEG_TO_METER;
+    private static final double METER_TO_DEG = LocationFusion.METER_TO_DEG;
+
+    private static final double LATITUDE = -34.6, LONGITUDE = -58.4;
+    private static final double EAST = DEG_TO_METER * Math.cos(Math.toRadians(LATITUDE));
+
+    /**
+     * Simulated speed, in meters per second, and largest acceptable relative speed error.
+     */
+    private static final double SPEED = 15.0;
+    private static final double MAX_SPEED_ERROR = 0.05;
+
+    /**
+     * Simulated duration, in seconds.
+     */
+    private static final int DURATION = 300;
+
+    /**
+     * Filter tick, and external receiver fix interval, in milliseconds.
+     */
+    private static final long TICK = 1000;
+    private static final long FIX_INTERVAL = 50;
+
+    /**
+     * UTC midnight of the simulated day, in milliseconds.
+     */
+    private static final long DATE = 1735689600000L;
+
+    /**
+     * Innovation gate of the filter threads, and seconds without fixes nor ticks in the gap scenario.
+     */
+    private static final double INNOVATION_GATE = 18.42;
+    private static final int GAP = 20;
+
+    public static void main(String[] args) {
+
+        boolean passed = true;
+
+        passed &= checkStageCorrections();
+        passed &= checkFastFixes();
+        passed &= checkSkippedTicks();
+
+        if (!passed) {
+
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * One tick per second, each followed by a stage correction, as a map matcher does on every tick, and then by a
+     * fix. The stage correction mustn't make the fix predict again.
+     */
+    private static boolean checkStageCorrections() {
+
+        Random random = new Random(0);
+        LocationFusion fusion = new LocationFusion();
+        double accuracy = 5.0;
+
+        for (int second = 0; second < DURATION; second++) {
+
+            double longitude = LONGITUDE + SPEED * second / EAST;
+
+            if (fusion.isStarted()) {
+
+                fusion.predict(false);
+                fusion.correctHorizontal(LATITUDE, fusion.getLongitude(), 2.0);
+            }
+
+            fusion.correct(
+                    LATITUDE + random.nextGaussian() * accuracy * METER_TO_DEG,
+                    longitude + random.nextGaussian() * accuracy / EAST,
+                    0.0, false, accuracy);
+        }
+
+        // One time step per second
+        return report("stage corrections", fusion.getLongitudeTracker().getVelocity() * EAST);
+    }
+
+    /**
+     * A 20 Hz NMEA stream from an external receiver, through the parser, with one tick per second, fused one fix per
+     * time step as the filter threads do. Speed is averaged over the second half, once converged.
+     */
+    private static boolean checkFastFixes() {
+
+        final Random random = new Random(0);
+        final LocationFusion fusion = new LocationFusion();
+        final double accuracy = 2.0;
+        final long[] fixStep = new long[1];
+
+        GnssParser parser = new GnssParser(new GnssParser.Listener() {
+
+            @Override
+            public void onFix(long time, double latitude, double longitude, double altitude, float accuracy,
+                              float speed, float bearing)
+            {
+                final long step = time / TICK;
+
+                if (fusion.isStarted() && step <= fixStep[0])
+                    return;
+
+                fusion.predictTo(step, false);
+                fusion.correct(latitude, longitude, altitude, false, accuracy);
+                fixStep[0] = step;
+            }
+        });
+
+        ByteBuffer buffer = ByteBuffer.allocate(GnssParser.MIN_BUFFER_SIZE);
+        Charset ascii = Charset.forName("US-ASCII");
+        double speedSum = 0.0;
+        int ticks = 0;
+
+        for (long time = 0; time < DURATION * 1000L; time += FIX_INTERVAL) {
+
+            // Tick first, as the filter thread would on the second. Time steps are one tick, i.e. one second
+            if (time % TICK == 0 && fusion.isStarted()) {
+
+                fusion.predictTo(time / TICK, false);
+
+                if (time >= DURATION * 500L) {
+
+                    speedSum += fusion.getLongitudeTracker().getVelocity() * EAST;
+                    ticks++;
+                }
+            }
+
+            double latitude = LATITUDE + random.nextGaussian() * accuracy / Math.sqrt(2.0) * METER_TO_DEG;
+            double longitude = LONGITUDE + (SPEED * time / 1000.0 + random.nextGaussian() * accuracy / Math.sqrt(2.0))
+                    / EAST;
+
+            buffer.put(toNmea(DATE + time, latitude, longitude, accuracy).getBytes(ascii));
+            buffer.flip();
+            parser.parse(buffer);
+            buffer.compact();
+        }
+
+        parser.flush();
+
+        return report("20 Hz fixes", speedSum / ticks);
+    }
+
+    /**
+     * Fixes and ticks once per second, then a gap without either, e.g. a tunnel, and then fixes again without
+     * ticks, as while a subscriber has no demand. Fixes are gated as the filter threads do, after predicting up to
+     * their time step, so none of those after the gap may be taken for inconsistent.
+     */
+    private static boolean checkSkippedTicks() {
+
+        Random random = new Random(0);
+        LocationFusion fusion = new LocationFusion();
+        double accuracy = 5.0;
+        int rejected = 0;
+
+        for (int second = 0; second < DURATION; second++) {
+
+            final boolean ticking = second < DURATION / 2 - GAP;
+
+            // No fixes during the gap
+            if (!ticking && second < DURATION / 2)
+                continue;
+
+            if (ticking)
+                fusion.predictTo(second, false);
+
+            double latitude = LATITUDE + random.nextGaussian() * accuracy * METER_TO_DEG;
+            double longitude = LONGITUDE + (SPEED * second + random.nextGaussian() * accuracy) / EAST;
+
+            fusion.predictTo(second, false);
+
+            if (fusion.isStarted() && fusion.getInnovation(latitude, longitude, accuracy) > INNOVATION_GATE) {
+
+                rejected++;
+                continue;
+            }
+
+            fusion.correct(latitude, longitude, 0.0, false, accuracy);
+        }
+
+        boolean passed = rejected == 0;
+
+        System.out.println(String.format("skipped ticks: %d fixes rejected, expected 0%s",
+                rejected, passed ? "" : " FAILED"));
+
+        return passed & report("skipped ticks", fusion.getLongitudeTracker().getVelocity() * EAST);
+    }
+
+    /**
+     * @return GGA, RMC and GST sentences of one epoch.
+     */
+    private static String toNmea(long time, double latitude, double longitude, double accuracy) {
+
+        long timeOfDay = time % 86400000L;
+        String utc = String.format("%02d%02d%05.2f",
+                timeOfDay / 3600000, timeOfDay / 60000 % 60, timeOfDay % 60000 / 1000.0);
+
+        String lat = String.format("%02d%010.7f,%c",
+                (int) Math.abs(latitude), Math.abs(latitude) % 1.0 * 60.0, latitude < 0 ? 'S' : 'N');
+        String lon = String.format("%03d%010.7f,%c",
+                (int) Math.abs(longitude), Math.abs(longitude) % 1.0 * 60.0, longitude < 0 ? 'W' : 'E');
+
+        double error = accuracy / Math.sqrt(2.0);
+
+        return withChecksum("GPGGA," + utc + "," + lat + "," + lon + ",1,12,0.8,25.0,M,14.0,M,,")
+                + withChecksum("GPRMC," + utc + ",A," + lat + "," + lon + "," + String.format("%.2f", SPEED / 0.514444)
+                + ",90.0,010125,,,A")
+                + withChecksum(String.format("GPGST,%s,1.0,1.5,1.0,90.0,%.2f,%.2f,3.0", utc, error, error));
+    }
+
+    private static String withChecksum(String body) {
+
+        int checksum = 0;
+
+        for (int i = 0; i < body.length(); i++)
+            checksum ^= body.charAt(i);
+
+        return String.format("$%s*%02X\r\n", body, checksum);
+    }
+
+    private static boolean report(String name, double speed) {
+
+        boolean passed = Math.abs(speed - SPEED) <= MAX_SPEED_ERROR * SPEED;
+
+        System.out.println(String.format("%s: speed %.2f m/s, expected %.2f m/s%s",
+                name, speed, SPEED, passed ? "" : " FAILED"));
+
+        return passed;
+    }
+}
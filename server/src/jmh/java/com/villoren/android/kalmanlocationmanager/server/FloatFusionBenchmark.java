@@ -0,0 +1,137 @@
+/*
+ * FloatFusionBenchmark
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.server;
+
+import com.villoren.android.kalmanlocationmanager.lib.FloatLocationFusion;
+import com.villoren.android.kalmanlocationmanager.lib.LocationFusion;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one filter step on a table of devices, in double and in single precision. Steps go round the whole
+ * table, so large tables measure how well state fits in the caches.
+ * <p>
+ * See {@link FloatFusionCheck} for the memory footprint of each variant.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class FloatFusionBenchmark {
+
+    private static final int FIXES = 1024;
+    private static final double METER_TO_DEG = 1.0 / 111225.0;
+
+    @Param({ "1000", "1000000" })
+    public int mDevices;
+
+    private final double[] mLatitudes = new double[FIXES];
+    private final double[] mLongitudes = new double[FIXES];
+    private final double[] mAltitudes = new double[FIXES];
+    private final float[] mAccuracies = new float[FIXES];
+
+    private LocationFusion[] mDoubleTable;
+    private FloatLocationFusion[] mFloatTable;
+    private int mDevice, mFix;
+
+    @Setup
+    public void setup() {
+
+        Random random = new Random(0);
+
+        for (int i = 0; i < FIXES; i++) {
+
+            mAccuracies[i] = 5.0f + random.nextFloat() * 10.0f;
+            mLatitudes[i] = -34.6 + random.nextGaussian() * mAccuracies[i] * METER_TO_DEG;
+            mLongitudes[i] = -58.4 + random.nextGaussian() * mAccuracies[i] * METER_TO_DEG;
+            mAltitudes[i] = 25.0 + random.nextGaussian() * mAccuracies[i];
+        }
+
+        mDoubleTable = new LocationFusion[mDevices];
+        mFloatTable = new FloatLocationFusion[mDevices];
+
+        for (int i = 0; i < mDevices; i++) {
+
+            mDoubleTable[i] = new LocationFusion();
+            mDoubleTable[i].correct(mLatitudes[0], mLongitudes[0], mAltitudes[0], true, mAccuracies[0]);
+
+            mFloatTable[i] = new FloatLocationFusion();
+            mFloatTable[i].correct(mLatitudes[0], mLongitudes[0], mAltitudes[0], true, mAccuracies[0]);
+        }
+    }
+
+    @Benchmark
+    public double doublePrecision() {
+
+        LocationFusion fusion = mDoubleTable[nextDevice()];
+        final int i = nextFix();
+
+        fusion.predict(true);
+        fusion.correct(mLatitudes[i], mLongitudes[i], mAltitudes[i], true, mAccuracies[i]);
+
+        return fusion.getLatitude();
+    }
+
+    @Benchmark
+    public double singlePrecision() {
+
+        FloatLocationFusion fusion = mFloatTable[nextDevice()];
+        final int i = nextFix();
+
+        fusion.predict(true);
+        fusion.correct(mLatitudes[i], mLongitudes[i], mAltitudes[i], true, mAccuracies[i]);
+
+        return fusion.getLatitude();
+    }
+
+    private int nextDevice() {
+
+        final int device = mDevice;
+        mDevice = device + 1 == mDevices ? 0 : device + 1;
+        return device;
+    }
+
+    private int nextFix() {
+
+        final int fix = mFix;
+        mFix = (fix + 1) & (FIXES - 1);
+        return fix;
+    }
+}
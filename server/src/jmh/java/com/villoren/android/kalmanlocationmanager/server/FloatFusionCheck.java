@@ -0,0 +1,242 @@
+/*
+ * FloatFusionCheck
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.server;
+
+import com.villoren.android.kalmanlocationmanager.lib.FloatLocationFusion;
+import com.villoren.android.kalmanlocationmanager.lib.LocationFusion;
+import com.villoren.android.kalmanlocationmanager.lib.TrajectoryDecoder;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Checks {@link FloatLocationFusion} against {@link LocationFusion}, and measures the memory each one takes.
+ * <p>
+ * Both filters are fed the same fixes, one prediction per second in between, and their estimates are compared.
+ * Fixes are replayed from trajectory files written by a {@code TrajectoryCompressor}, or simulated if none are
+ * given.
+ * <p>
+ * Usage: FloatFusionCheck [trajectory...]
+ */
+public class FloatFusionCheck {
+
+    private static final double DEG_TO_METER = 111225.0;
+    private static final double METER_TO_DEG = 1.0 / DEG_TO_METER;
+
+    /**
+     * Prediction period, in milliseconds.
+     */
+    private static final long TICK_LENGTH = 1000;
+
+    /**
+     * Largest acceptable horizontal and vertical differences, in meters.
+     */
+    private static final double MAX_HORIZONTAL_ERROR = 0.01;
+    private static final double MAX_VERTICAL_ERROR = 0.01;
+
+    /**
+     * Instances allocated to measure footprints.
+     */
+    private static final int FOOTPRINT_INSTANCES = 200000;
+
+    private final LocationFusion mDouble = new LocationFusion();
+    private final FloatLocationFusion mFloat = new FloatLocationFusion();
+
+    private long mTickTime;
+    private int mFixes;
+    private double mSquaredError, mMaxError, mMaxVerticalError;
+
+    public static void main(String[] args) throws IOException {
+
+        boolean passed = true;
+
+        if (args.length == 0) {
+
+            Random random = new Random(0);
+
+            for (int i = 0; i < 10; i++)
+                passed &= simulate(random).report("simulated track " + i);
+
+        } else {
+
+            for (String path : args) {
+
+                InputStream in = new BufferedInputStream(new FileInputStream(path));
+
+                try {
+
+                    passed &= replay(new TrajectoryDecoder(in)).report(path);
+
+                } finally {
+
+                    in.close();
+                }
+            }
+        }
+
+        System.out.println(String.format("Footprint: double %d bytes, float %d bytes per device",
+                footprint(false), footprint(true)));
+
+        if (!passed) {
+
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+    }
+
+    private static FloatFusionCheck replay(TrajectoryDecoder decoder) throws IOException {
+
+        FloatFusionCheck check = new FloatFusionCheck();
+
+        while (decoder.next()) {
+
+            check.fuse(decoder.getTime(), decoder.getLatitude(), decoder.getLongitude(), decoder.getAltitude(),
+                    decoder.hasAltitude(), decoder.getAccuracy());
+        }
+
+        return check;
+    }
+
+    /**
+     * An hour of driving with stops and turns, far enough to move the float origin a few times.
+     */
+    private static FloatFusionCheck simulate(Random random) {
+
+        FloatFusionCheck check = new FloatFusionCheck();
+
+        double latitude = -60.0 + random.nextDouble() * 120.0;
+        double longitude = -180.0 + random.nextDouble() * 360.0;
+        double altitude = random.nextDouble() * 1000.0;
+        double heading = random.nextDouble() * 2.0 * Math.PI;
+        double speed = 0.0;
+
+        for (long time = 0; time < 3600 * 1000; time += TICK_LENGTH) {
+
+            speed = Math.max(0.0, Math.min(30.0, speed + random.nextGaussian()));
+            heading += random.nextGaussian() * 0.1;
+
+            latitude += speed * Math.cos(heading) * METER_TO_DEG;
+            longitude += speed * Math.sin(heading) * METER_TO_DEG / Math.cos(Math.toRadians(latitude));
+            altitude += random.nextGaussian() * 0.5;
+
+            float accuracy = 3.0f + random.nextFloat() * 20.0f;
+
+            check.fuse(time,
+                    latitude + random.nextGaussian() * accuracy * METER_TO_DEG,
+                    longitude + random.nextGaussian() * accuracy * METER_TO_DEG,
+                    altitude + random.nextGaussian() * accuracy,
+                    true,
+                    accuracy);
+        }
+
+        return check;
+    }
+
+    private void fuse(long time, double latitude, double longitude, double altitude, boolean hasAltitude,
+            float accuracy)
+    {
+        if (mDouble.isStarted()) {
+
+            for (; mTickTime + TICK_LENGTH <= time; mTickTime += TICK_LENGTH) {
+
+                mDouble.predict(mDouble.hasAltitudeTracker());
+                mFloat.predict(mFloat.hasAltitudeTracker());
+            }
+
+        } else {
+
+            mTickTime = time;
+        }
+
+        mDouble.correct(latitude, longitude, altitude, hasAltitude, accuracy);
+        mFloat.correct(latitude, longitude, altitude, hasAltitude, accuracy);
+
+        double north = (mFloat.getLatitude() - mDouble.getLatitude()) * DEG_TO_METER;
+        double east = (mFloat.getLongitude() - mDouble.getLongitude()) * DEG_TO_METER
+                * Math.cos(Math.toRadians(latitude));
+        double error2 = north * north + east * east;
+
+        mFixes++;
+        mSquaredError += error2;
+        mMaxError = Math.max(mMaxError, Math.sqrt(error2));
+
+        if (mDouble.hasAltitudeTracker())
+            mMaxVerticalError = Math.max(mMaxVerticalError, Math.abs(mFloat.getAltitude() - mDouble.getAltitude()));
+    }
+
+    private boolean report(String name) {
+
+        boolean passed = mMaxError <= MAX_HORIZONTAL_ERROR && mMaxVerticalError <= MAX_VERTICAL_ERROR;
+
+        System.out.println(String.format("%s: %d fixes, horizontal rms %.2e m, max %.2e m, vertical max %.2e m%s",
+                name, mFixes, Math.sqrt(mSquaredError / Math.max(mFixes, 1)), mMaxError, mMaxVerticalError,
+                passed ? "" : " FAILED"));
+
+        return passed;
+    }
+
+    /**
+     * @return Approximate heap bytes taken by each started filter.
+     */
+    private static long footprint(boolean singlePrecision) {
+
+        Object[] table = new Object[FOOTPRINT_INSTANCES];
+        long before = usedMemory();
+
+        for (int i = 0; i < table.length; i++) {
+
+            if (singlePrecision) {
+
+                FloatLocationFusion fusion = new FloatLocationFusion();
+                fusion.correct(0.0, 0.0, 0.0, true, 5.0);
+                table[i] = fusion;
+
+            } else {
+
+                LocationFusion fusion = new LocationFusion();
+                fusion.correct(0.0, 0.0, 0.0, true, 5.0);
+                table[i] = fusion;
+            }
+        }
+
+        long bytes = (usedMemory() - before) / table.length;
+
+        // Keep the table reachable until measured
+        return table[table.length - 1] != null ? bytes : 0;
+    }
+
+    private static long usedMemory() {
+
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++)
+            System.gc();
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * FusionBenchmark
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.server;
+
+import com.villoren.android.kalmanlocationmanager.lib.LocationFusion;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one filter step (a prediction and a correction) with a single model and with multiple models.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FusionBenchmark {
+
+    private static final int FIXES = 1024;
+    private static final double METER_TO_DEG = 1.0 / 111225.0;
+
+    private final double[] mLatitudes = new double[FIXES];
+    private final double[] mLongitudes = new double[FIXES];
+    private final double[] mAltitudes = new double[FIXES];
+    private final float[] mAccuracies = new float[FIXES];
+
+    private LocationFusion mSingleModel, mMultipleModels;
+    private int mIndex;
+
+    @Setup
+    public void setup() {
+
+        // Stop-and-go track back and forth along a street, with noisy readings. Ends where it starts.
+        Random random = new Random(0);
+        double position = 0.0;
+
+        for (int i = 0; i < FIXES; i++) {
+
+            switch ((i / 64) % 4) {
+                case 1: position += 10.0; break;
+                case 3: position -= 10.0; break;
+            }
+
+            mAccuracies[i] = 5.0f + random.nextFloat() * 10.0f;
+            mLatitudes[i] = -34.6 + (position + random.nextGaussian() * mAccuracies[i]) * METER_TO_DEG;
+            mLongitudes[i] = -58.4 + random.nextGaussian() * mAccuracies[i] * METER_TO_DEG;
+            mAltitudes[i] = 25.0 + random.nextGaussian() * mAccuracies[i];
+        }
+
+        mSingleModel = new LocationFusion(false);
+        mMultipleModels = new LocationFusion(true);
+
+        step(mSingleModel);
+        step(mMultipleModels);
+    }
+
+    @Benchmark
+    public double singleModel() {
+
+        return step(mSingleModel);
+    }
+
+    @Benchmark
+    public double multipleModels() {
+
+        return step(mMultipleModels);
+    }
+
+    private double step(LocationFusion fusion) {
+
+        final int i = mIndex;
+        mIndex = (i + 1) & (FIXES - 1);
+
+        if (fusion.isStarted())
+            fusion.predict(true);
+
+        fusion.correct(mLatitudes[i], mLongitudes[i], mAltitudes[i], true, mAccuracies[i]);
+
+        return fusion.getLatitude() + fusion.getLongitude();
+    }
+}
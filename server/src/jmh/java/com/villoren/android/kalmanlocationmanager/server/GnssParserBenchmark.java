@@ -0,0 +1,213 @@
+/*
+ * GnssParserBenchmark
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.server;
+
+import com.villoren.android.kalmanlocationmanager.lib.GnssParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of parsing one epoch of external receiver output: GGA, RMC and GST sentences, or a NAV-PVT frame. Also
+ * parsed in small chunks, as read from a serial bridge, to include moving partial sentences around.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GnssParserBenchmark {
+
+    private static final int EPOCHS = 1024;
+    private static final int CHUNK = 64;
+    private static final double METER_TO_DEG = 1.0 / 111225.0;
+
+    private ByteBuffer mNmea, mUbx, mChunk;
+    private GnssParser mParser;
+    private double mSum;
+
+    @Setup
+    public void setup() {
+
+        Random random = new Random(0);
+        StringBuilder nmea = new StringBuilder();
+
+        mUbx = ByteBuffer.allocateDirect(EPOCHS * 100).order(ByteOrder.LITTLE_ENDIAN);
+
+        // Receiver moving north at 10 Hz, with noisy readings
+        for (int i = 0; i < EPOCHS; i++) {
+
+            double latitude = -34.6 + (i * 1.5 + random.nextGaussian() * 2.0) * METER_TO_DEG;
+            double longitude = -58.4 + random.nextGaussian() * 2.0 * METER_TO_DEG;
+            int tenths = 450000 + i;
+            String time = String.format("%02d%02d%02d.%d0",
+                    tenths / 36000, tenths / 600 % 60, tenths / 10 % 60, tenths % 10);
+
+            appendSentence(nmea, String.format("GNRMC,%s,A,%s,%s,015.2,001.3,181026,,,A",
+                    time, toNmea(latitude, 2, 'N', 'S'), toNmea(longitude, 3, 'E', 'W')));
+            appendSentence(nmea, String.format("GNGGA,%s,%s,%s,1,12,0.8,25.3,M,16.1,M,,",
+                    time, toNmea(latitude, 2, 'N', 'S'), toNmea(longitude, 3, 'E', 'W')));
+            appendSentence(nmea, String.format("GNGST,%s,2.1,1.8,1.2,35.0,1.6,1.4,3.2", time));
+
+            appendNavPvt(mUbx, tenths * 100, latitude, longitude);
+        }
+
+        mNmea = ByteBuffer.allocateDirect(nmea.length());
+        mNmea.put(nmea.toString().getBytes(Charset.forName("US-ASCII")));
+        mNmea.flip();
+        mUbx.flip();
+
+        mChunk = ByteBuffer.allocateDirect(GnssParser.MIN_BUFFER_SIZE);
+
+        mParser = new GnssParser(new GnssParser.Listener() {
+
+            @Override
+            public void onFix(long time, double latitude, double longitude, double altitude, float accuracy,
+                              float speed, float bearing)
+            {
+                mSum += latitude + longitude + accuracy;
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EPOCHS)
+    public double nmea() {
+
+        mNmea.rewind();
+        mParser.parse(mNmea);
+
+        return mSum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EPOCHS)
+    public double nmeaChunked() {
+
+        mNmea.rewind();
+        mChunk.clear();
+
+        while (mNmea.hasRemaining()) {
+
+            // Read
+            int length = Math.min(CHUNK, mNmea.remaining());
+            ByteBuffer source = mNmea.duplicate();
+            source.limit(source.position() + length);
+            mChunk.put(source);
+            mNmea.position(mNmea.position() + length);
+
+            // Parse
+            mChunk.flip();
+            mParser.parse(mChunk);
+            mChunk.compact();
+        }
+
+        return mSum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EPOCHS)
+    public double ubx() {
+
+        mUbx.rewind();
+        mParser.parse(mUbx);
+
+        return mSum;
+    }
+
+    private static String toNmea(double coordinate, int degreeDigits, char positive, char negative) {
+
+        double value = Math.abs(coordinate);
+        int degrees = (int) value;
+
+        return String.format(Locale.US, "%0" + degreeDigits + "d%07.4f,%c",
+                degrees, (value - degrees) * 60.0, coordinate < 0 ? negative : positive);
+    }
+
+    private static void appendSentence(StringBuilder builder, String sentence) {
+
+        int checksum = 0;
+
+        for (int i = 0; i < sentence.length(); i++)
+            checksum ^= sentence.charAt(i);
+
+        builder.append('$').append(sentence).append(String.format("*%02X\r\n", checksum));
+    }
+
+    private static void appendNavPvt(ByteBuffer buffer, int timeOfDay, double latitude, double longitude) {
+
+        int start = buffer.position();
+
+        buffer.put((byte) 0xb5).put((byte) 0x62).put((byte) 0x01).put((byte) 0x07).putShort((short) 92);
+
+        int payload = buffer.position();
+
+        buffer.put(new byte[92]);
+        buffer.putShort(payload + 4, (short) 2026);
+        buffer.put(payload + 6, (byte) 10);
+        buffer.put(payload + 7, (byte) 18);
+        buffer.put(payload + 8, (byte) (timeOfDay / 3600000));
+        buffer.put(payload + 9, (byte) (timeOfDay / 60000 % 60));
+        buffer.put(payload + 10, (byte) (timeOfDay / 1000 % 60));
+        buffer.put(payload + 11, (byte) 0x07);
+        buffer.putInt(payload + 16, timeOfDay % 1000 * 1000000);
+        buffer.put(payload + 20, (byte) 3);
+        buffer.put(payload + 21, (byte) 0x01);
+        buffer.putInt(payload + 24, (int) Math.round(longitude * 1.0e7));
+        buffer.putInt(payload + 28, (int) Math.round(latitude * 1.0e7));
+        buffer.putInt(payload + 32, 41400);
+        buffer.putInt(payload + 40, 2100);
+        buffer.putInt(payload + 60, 15200);
+        buffer.putInt(payload + 64, 130000);
+
+        // 8-bit Fletcher over class, id, length and payload
+        int a = 0, b = 0;
+
+        for (int i = start + 2; i < buffer.position(); i++) {
+
+            a = (a + (buffer.get(i) & 0xff)) & 0xff;
+            b = (b + a) & 0xff;
+        }
+
+        buffer.put((byte) a).put((byte) b);
+    }
+}
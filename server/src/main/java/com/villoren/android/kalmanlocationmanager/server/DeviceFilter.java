@@ -0,0 +1,143 @@
+/*
+ * DeviceFilter
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.server;
+
+import com.villoren.android.kalmanlocationmanager.lib.FloatLocationFusion;
+import com.villoren.android.kalmanlocationmanager.lib.LocationFusion;
+
+/**
+ * Filter state of one device.
+ * <p>
+ * Replays the device side logic: the filter predicts once per tick, and each fix corrects it. Since the server
+ * only sees fixes, ticks are virtual: the predictions due since the last tick are made when the next fix arrives.
+ * <p>
+ * Runs either the library filter, or its single precision counterpart when memory matters more.
+ */
+final class DeviceFilter {
+
+    /**
+     * Gaps longer than this many ticks restart the filter instead of predicting through them.
+     */
+    private static final long MAX_CATCH_UP_TICKS = 600;
+
+    /**
+     * Exactly one of them is set.
+     */
+    private LocationFusion mFusion;
+    private FloatLocationFusion mFloatFusion;
+
+    /**
+     * Device time of the last virtual tick, in milliseconds.
+     */
+    private long mTickTime;
+
+    /**
+     * Server time the device was last seen, in milliseconds.
+     */
+    long mLastSeen;
+
+    /**
+     * @param singlePrecision Use {@link FloatLocationFusion}.
+     */
+    DeviceFilter(boolean singlePrecision) {
+
+        reset(singlePrecision);
+    }
+
+    /**
+     * Fuse a fix.
+     *
+     * @param tickLength Filter tick length, in milliseconds.
+     */
+    void fuse(long time, double latitude, double longitude, double altitude, float accuracy, long tickLength) {
+
+        final boolean hasAltitude = !Double.isNaN(altitude);
+
+        if (isStarted()) {
+
+            final long ticks = (time - mTickTime) / tickLength;
+
+            if (ticks > MAX_CATCH_UP_TICKS) {
+
+                reset(mFloatFusion != null);
+                mTickTime = time;
+
+            } else if (ticks > 0) {
+
+                final boolean predictAltitude = hasAltitude();
+
+                for (long i = 0; i < ticks; i++) {
+
+                    if (mFusion != null)
+                        mFusion.predict(predictAltitude);
+                    else
+                        mFloatFusion.predict(predictAltitude);
+                }
+
+                mTickTime += ticks * tickLength;
+            }
+
+        } else {
+
+            mTickTime = time;
+        }
+
+        if (mFusion != null)
+            mFusion.correct(latitude, longitude, altitude, hasAltitude, accuracy);
+        else
+            mFloatFusion.correct(latitude, longitude, altitude, hasAltitude, accuracy);
+    }
+
+    boolean isStarted() { return mFusion != null ? mFusion.isStarted() : mFloatFusion.isStarted(); }
+
+    boolean hasAltitude() { return mFusion != null ? mFusion.hasAltitudeTracker() : mFloatFusion.hasAltitudeTracker(); }
+
+    double getLatitude() { return mFusion != null ? mFusion.getLatitude() : mFloatFusion.getLatitude(); }
+
+    double getLongitude() { return mFusion != null ? mFusion.getLongitude() : mFloatFusion.getLongitude(); }
+
+    /**
+     * @return Estimated altitude, in meters. NaN if none.
+     */
+    double getAltitude() {
+
+        if (!hasAltitude())
+            return Double.NaN;
+
+        return mFusion != null ? mFusion.getAltitude() : mFloatFusion.getAltitude();
+    }
+
+    double getAccuracy() { return mFusion != null ? mFusion.getAccuracy() : mFloatFusion.getAccuracy(); }
+
+    private void reset(boolean singlePrecision) {
+
+        mFusion = singlePrecision ? null : new LocationFusion();
+        mFloatFusion = singlePrecision ? new FloatLocationFusion() : null;
+
+        // Devices mostly report at a fixed rate and accuracy
+        if (mFusion != null)
+            mFusion.setSteadyState(true);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * EstimateSink
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.server;
+
+/**
+ * Receives the estimates produced by one shard worker.
+ * <p>
+ * Each worker has its own sink, and calls it from its own thread only.
+ */
+public interface EstimateSink {
+
+    /**
+     * Called for each fused fix.
+     *
+     * @param device Device id.
+     * @param time Time of the fix, in milliseconds.
+     * @param latitude Estimated latitude, in degrees.
+     * @param longitude Estimated longitude, in degrees.
+     * @param altitude Estimated altitude, in meters. NaN if none.
+     * @param accuracy Estimate accuracy, in meters.
+     */
+    void onEstimate(long device, long time, double latitude, double longitude, double altitude, float accuracy);
+
+    /**
+     * Called when the worker runs out of fixes, so buffered estimates can be sent.
+     */
+    void flush();
+}
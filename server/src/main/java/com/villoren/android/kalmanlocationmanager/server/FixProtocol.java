@@ -0,0 +1,60 @@
+/*
+ * FixProtocol
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format of fix and estimate frames. Both share the same layout.
+ * <p>
+ * Each frame is a big-endian int with the payload length, followed by the payload: device id (long),
+ * time in milliseconds (long), latitude and longitude in degrees (double), altitude in meters (double, NaN if none)
+ * and accuracy in meters (float).
+ * <p>
+ * Fix frames with an infinite value, a NaN position or accuracy, or a non-positive accuracy are dropped.
+ */
+final class FixProtocol {
+
+    static final int PAYLOAD_SIZE = 8 + 8 + 8 + 8 + 8 + 4;
+    static final int FRAME_SIZE = 4 + PAYLOAD_SIZE;
+
+    private FixProtocol() {}
+
+    /**
+     * Put a whole frame.
+     */
+    static void put(
+            ByteBuffer buffer, long device, long time, double latitude, double longitude, double altitude,
+            float accuracy)
+    {
+        buffer.putInt(PAYLOAD_SIZE);
+        buffer.putLong(device);
+        buffer.putLong(time);
+        buffer.putDouble(latitude);
+        buffer.putDouble(longitude);
+        buffer.putDouble(altitude);
+        buffer.putFloat(accuracy);
+    }
+}
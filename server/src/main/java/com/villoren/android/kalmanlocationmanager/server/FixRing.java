@@ -0,0 +1,123 @@
+/*
+ * FixRing
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer single-consumer queue of fixes, stored in parallel primitive arrays.
+ * <p>
+ * Hands fixes from the network thread over to the worker that owns their shard, without locks or allocation.
+ */
+final class FixRing {
+
+    private final int mMask;
+
+    // Slots, read by the consumer between head and tail
+    final long[] mDevices, mTimes;
+    final double[] mLatitudes, mLongitudes, mAltitudes;
+    final float[] mAccuracies;
+
+    /**
+     * Next slot to be read (written by the consumer) and next slot to be written (written by the producer).
+     */
+    private final AtomicLong mHead = new AtomicLong(), mTail = new AtomicLong();
+
+    /**
+     * Producer side copies, to avoid reading the other side's counter on every offer.
+     */
+    private long mProducerTail, mProducerHeadCache;
+
+    /**
+     * @param capacity Capacity, rounded up to a power of two.
+     */
+    FixRing(int capacity) {
+
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        mMask = size - 1;
+        mDevices = new long[size];
+        mTimes = new long[size];
+        mLatitudes = new double[size];
+        mLongitudes = new double[size];
+        mAltitudes = new double[size];
+        mAccuracies = new float[size];
+    }
+
+    /**
+     * Producer only.
+     *
+     * @return False if the ring is full.
+     */
+    boolean offer(long device, long time, double latitude, double longitude, double altitude, float accuracy) {
+
+        final long tail = mProducerTail;
+
+        if (tail - mProducerHeadCache > mMask) {
+
+            mProducerHeadCache = mHead.get();
+
+            if (tail - mProducerHeadCache > mMask)
+                return false;
+        }
+
+        final int slot = (int) tail & mMask;
+
+        mDevices[slot] = device;
+        mTimes[slot] = time;
+        mLatitudes[slot] = latitude;
+        mLongitudes[slot] = longitude;
+        mAltitudes[slot] = altitude;
+        mAccuracies[slot] = accuracy;
+
+        mProducerTail = tail + 1;
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return Position after the last written slot. Slots from the current head up to it may be read.
+     */
+    long tail() { return mTail.get(); }
+
+    /**
+     * Consumer only.
+     *
+     * @return Position of the next slot to read.
+     */
+    long head() { return mHead.get(); }
+
+    /**
+     * Consumer only. Hands slots up to the given position back to the producer.
+     */
+    void release(long head) { mHead.lazySet(head); }
+
+    /**
+     * @return Array index of the given position.
+     */
+    int slot(long position) { return (int) position & mMask; }
+}
@@ -0,0 +1,406 @@
+/*
+ * FusionServer
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.server;
+
+import com.villoren.android.kalmanlocationmanager.lib.FloatLocationFusion;
+import com.villoren.android.kalmanlocationmanager.lib.Tracing;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Fuses fixes streamed by many devices, with the same filter the library runs on each device.
+ * <p>
+ * A single network thread reads {@link FixProtocol} frames from every connection, and hands each fix over to the
+ * worker owning its device's shard. Each worker keeps the filters of its devices, and publishes estimates to its
+ * own {@link EstimateSink}.
+ * <p>
+ * Usage: FusionServer [-float] port [shards [maxDevices [downstreamHost:port]]]
+ * <p>
+ * With -float, filter state is kept in single precision, see {@link FloatLocationFusion}.
+ */
+public class FusionServer {
+
+    private static final int DEFAULT_SHARDS = 4;
+    private static final int DEFAULT_MAX_DEVICES = 100000;
+
+    /**
+     * Per shard queue capacity, in fixes.
+     */
+    private static final int RING_CAPACITY = 1 << 16;
+
+    /**
+     * Longest the network thread waits for room in a full shard queue over a whole stall, in nanoseconds. Fixes for
+     * that shard are dropped from then on, until it takes one again.
+     */
+    private static final long MAX_DISPATCH_WAIT = 100L * 1000 * 1000;
+
+    /**
+     * Stall start of a shard queue that isn't full.
+     */
+    private static final long NOT_FULL = Long.MIN_VALUE;
+
+    /**
+     * Per connection read buffer size, in frames.
+     */
+    private static final int READ_BUFFER_FRAMES = 256;
+
+    /**
+     * Devices not seen for this long are evicted, in milliseconds.
+     */
+    private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * Filter tick length, in milliseconds. Same meaning as minTimeFilter on devices.
+     */
+    private static final long TICK_LENGTH = 1000;
+
+    private final FixRing[] mRings;
+
+    /**
+     * {@link System#nanoTime()} when each shard queue was found full, for the current stall. Network thread only.
+     */
+    private final long[] mFullSince;
+    private final ShardWorker[] mWorkers;
+    private final SocketEstimateSink[] mDownstreamSinks;
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+
+    // Statistics, written by the network thread only
+    private volatile long mFrameCount, mDroppedCount, mFullCount, mOverflowCount;
+
+    public FusionServer(
+            int port, int shards, int maxDevices, InetSocketAddress downstream, boolean singlePrecision)
+            throws IOException
+    {
+
+        mRings = new FixRing[shards];
+        mFullSince = new long[shards];
+        Arrays.fill(mFullSince, NOT_FULL);
+        mWorkers = new ShardWorker[shards];
+        mDownstreamSinks = new SocketEstimateSink[downstream != null ? shards : 0];
+
+        for (int i = 0; i < shards; i++) {
+
+            if (downstream != null)
+                mDownstreamSinks[i] = new SocketEstimateSink(downstream);
+
+            EstimateSink sink = downstream != null ? mDownstreamSinks[i] : new EstimateSink() {
+
+                @Override
+                public void onEstimate(
+                        long device, long time, double latitude, double longitude, double altitude, float accuracy) {}
+
+                @Override
+                public void flush() {}
+            };
+
+            mRings[i] = new FixRing(RING_CAPACITY);
+            mWorkers[i] = new ShardWorker(
+                    i, mRings[i], sink, maxDevices / shards, IDLE_TIMEOUT, TICK_LENGTH, singlePrecision);
+        }
+
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().bind(new InetSocketAddress(port));
+        mServerChannel.configureBlocking(false);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Start the workers and serve connections on the calling thread, until interrupted.
+     */
+    public void serve() throws IOException {
+
+        for (ShardWorker worker : mWorkers)
+            worker.start();
+
+        try {
+
+            while (!Thread.currentThread().isInterrupted()) {
+
+                mSelector.select();
+
+                Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+
+                while (iterator.hasNext()) {
+
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    if (!key.isValid())
+                        continue;
+
+                    if (key.isAcceptable())
+                        accept();
+
+                    else if (key.isReadable())
+                        read(key);
+                }
+            }
+
+        } finally {
+
+            for (ShardWorker worker : mWorkers)
+                worker.close();
+
+            mSelector.close();
+            mServerChannel.close();
+        }
+    }
+
+    /**
+     * @return A line with the current totals.
+     */
+    public String getStatistics() {
+
+        long fixes = 0, evictions = 0, devices = 0, downstreamDropped = 0, reconnects = 0;
+
+        for (ShardWorker worker : mWorkers) {
+
+            fixes += worker.getFixCount();
+            evictions += worker.getEvictionCount();
+            devices += worker.getDeviceCount();
+        }
+
+        for (SocketEstimateSink sink : mDownstreamSinks) {
+
+            downstreamDropped += sink.getDroppedCount();
+            reconnects += sink.getReconnectCount();
+        }
+
+        return String.format(
+                "frames=%d fused=%d devices=%d evicted=%d dropped=%d ringFull=%d ringDropped=%d "
+                        + "downstreamDropped=%d reconnects=%d",
+                mFrameCount, fixes, devices, evictions, mDroppedCount, mFullCount, mOverflowCount,
+                downstreamDropped, reconnects);
+    }
+
+    private void accept() throws IOException {
+
+        SocketChannel channel = mServerChannel.accept();
+
+        if (channel == null)
+            return;
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(mSelector, SelectionKey.OP_READ, ByteBuffer.allocateDirect(
+                READ_BUFFER_FRAMES * FixProtocol.FRAME_SIZE));
+    }
+
+    private void read(SelectionKey key) {
+
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = (ByteBuffer) key.attachment();
+
+        try {
+
+            if (channel.read(buffer) < 0) {
+
+                close(key);
+                return;
+            }
+
+        } catch (IOException e) {
+
+            close(key);
+            return;
+        }
+
+        buffer.flip();
+
+        long frames = 0;
+
+        while (buffer.remaining() >= 4) {
+
+            final int length = buffer.getInt(buffer.position());
+
+            // Only one frame type for now. Anything else means the stream is out of sync.
+            if (length != FixProtocol.PAYLOAD_SIZE) {
+
+                close(key);
+                return;
+            }
+
+            if (buffer.remaining() < FixProtocol.FRAME_SIZE)
+                break;
+
+            buffer.getInt();
+            dispatch(buffer.getLong(), buffer.getLong(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble(),
+                    buffer.getFloat());
+            frames++;
+        }
+
+        buffer.compact();
+        mFrameCount += frames;
+    }
+
+    private static boolean isFinite(double value) {
+
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    /**
+     * Hand a fix over to its shard. If the worker falls behind, the network thread waits for it, which in turn
+     * pushes back on the connections through TCP flow control. Waits are bounded per stall, not per fix, and fixes
+     * are dropped right away past that, so a stalled worker can't slow down the other shards.
+     */
+    private void dispatch(long device, long time, double latitude, double longitude, double altitude, float accuracy) {
+
+        // A single infinite value would poison the device's filter for good
+        if (!isFinite(latitude) || !isFinite(longitude) || Double.isInfinite(altitude)
+                || !(accuracy > 0) || Float.isInfinite(accuracy)) {
+
+            mDroppedCount++;
+            return;
+        }
+
+        // Spread sequential ids evenly
+        long hash = device * 0x9E3779B97F4A7C15L;
+        final int shard = (int) ((hash >>> 32) % mRings.length);
+        final FixRing ring = mRings[shard];
+
+        if (ring.offer(device, time, latitude, longitude, altitude, accuracy)) {
+
+            mFullSince[shard] = NOT_FULL;
+            return;
+        }
+
+        mFullCount++;
+
+        if (mFullSince[shard] == NOT_FULL)
+            mFullSince[shard] = System.nanoTime();
+
+        // Whatever is left of the wait allowed for this stall
+        while (System.nanoTime() - mFullSince[shard] <= MAX_DISPATCH_WAIT) {
+
+            Thread.yield();
+
+            if (ring.offer(device, time, latitude, longitude, altitude, accuracy)) {
+
+                mFullSince[shard] = NOT_FULL;
+                return;
+            }
+        }
+
+        mOverflowCount++;
+    }
+
+    private void close(SelectionKey key) {
+
+        key.cancel();
+
+        try {
+
+            key.channel().close();
+
+        } catch (IOException e) {
+
+            // Nothing else to do
+        }
+    }
+
+    /**
+     * Send filter trace events to JFR. The backend is built apart, see 'gradle :server:runTraced'.
+     */
+    private static void installTracing() {
+
+        try {
+
+            Tracing.installBackend((Tracing.Backend) Class.forName(
+                    "com.villoren.android.kalmanlocationmanager.server.JfrTraceBackend")
+                    .getDeclaredConstructor().newInstance());
+
+        } catch (ReflectiveOperationException e) {
+
+            System.err.println("Tracing enabled, but the JFR backend isn't available: " + e);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        final boolean singlePrecision = args.length > 0 && args[0].equals("-float");
+
+        if (singlePrecision)
+            args = Arrays.copyOfRange(args, 1, args.length);
+
+        if (args.length < 1) {
+
+            System.err.println("Usage: FusionServer [-float] port [shards [maxDevices [downstreamHost:port]]]");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[0]);
+        int shards = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SHARDS;
+        int maxDevices = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_MAX_DEVICES;
+        InetSocketAddress downstream = null;
+
+        if (args.length > 3) {
+
+            int colon = args[3].lastIndexOf(':');
+            downstream = new InetSocketAddress(
+                    args[3].substring(0, colon), Integer.parseInt(args[3].substring(colon + 1)));
+        }
+
+        if (Tracing.ENABLED)
+            installTracing();
+
+        final FusionServer server = new FusionServer(port, shards, maxDevices, downstream, singlePrecision);
+
+        Thread statistics = new Thread("statistics") {
+
+            @Override
+            public void run() {
+
+                try {
+
+                    while (true) {
+
+                        Thread.sleep(1000);
+                        System.out.println(server.getStatistics());
+                    }
+
+                } catch (InterruptedException e) {
+
+                    // Done
+                }
+            }
+        };
+
+        statistics.setDaemon(true);
+        statistics.start();
+
+        System.out.println("Listening on port " + port + " with " + shards + " shards");
+        server.serve();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * LoadGenerator
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams simulated fixes to a fusion server, and reports the throughput.
+ * <p>
+ * Each connection sends fixes for its own range of devices, each one walking randomly around a starting point.
+ * <p>
+ * Usage: LoadGenerator host:port [connections [devices [seconds]]]
+ */
+public class LoadGenerator {
+
+    private static final int BATCH_FRAMES = 512;
+
+    /**
+     * Simulated time between fixes of one device, in milliseconds.
+     */
+    private static final long FIX_INTERVAL = 1000;
+
+    private static final double METER_TO_DEG = 1.0 / 111225.0;
+
+    public static void main(String[] args) throws Exception {
+
+        if (args.length < 1) {
+
+            System.err.println("Usage: LoadGenerator host:port [connections [devices [seconds]]]");
+            System.exit(1);
+        }
+
+        int colon = args[0].lastIndexOf(':');
+        final InetSocketAddress address = new InetSocketAddress(
+                args[0].substring(0, colon), Integer.parseInt(args[0].substring(colon + 1)));
+
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int devices = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        final AtomicLong sent = new AtomicLong();
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] threads = new Thread[connections];
+
+        for (int i = 0; i < connections; i++) {
+
+            final int firstDevice = devices * i / connections;
+            final int lastDevice = devices * (i + 1) / connections;
+            final long seed = i;
+
+            threads[i] = new Thread("connection-" + i) {
+
+                @Override
+                public void run() {
+
+                    try {
+
+                        send(address, firstDevice, lastDevice, seed, deadline, sent);
+
+                    } catch (Exception e) {
+
+                        e.printStackTrace();
+                    }
+                }
+            };
+
+            threads[i].start();
+        }
+
+        long start = System.currentTimeMillis();
+        long last = 0;
+
+        while (System.currentTimeMillis() < deadline) {
+
+            Thread.sleep(1000);
+
+            long total = sent.get();
+            System.out.println("sent=" + total + " rate=" + (total - last) + "/s");
+            last = total;
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("Sent " + sent.get() + " fixes in " + elapsed + " ms, "
+                + (sent.get() * 1000 / Math.max(elapsed, 1)) + " fixes/s");
+    }
+
+    private static void send(
+            InetSocketAddress address, int firstDevice, int lastDevice, long seed, long deadline, AtomicLong sent)
+            throws Exception
+    {
+        final int count = lastDevice - firstDevice;
+
+        if (count <= 0)
+            return;
+
+        Random random = new Random(seed);
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        long[] times = new long[count];
+
+        for (int i = 0; i < count; i++) {
+
+            latitudes[i] = -34.6 + random.nextDouble() * 0.1;
+            longitudes[i] = -58.4 + random.nextDouble() * 0.1;
+        }
+
+        SocketChannel channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_FRAMES * FixProtocol.FRAME_SIZE);
+
+        try {
+
+            int device = 0;
+
+            while (System.currentTimeMillis() < deadline) {
+
+                for (int i = 0; i < BATCH_FRAMES; i++) {
+
+                    // Random walk, about 10 m per fix, with noisy readings
+                    latitudes[device] += random.nextGaussian() * 10.0 * METER_TO_DEG;
+                    longitudes[device] += random.nextGaussian() * 10.0 * METER_TO_DEG;
+                    times[device] += FIX_INTERVAL;
+
+                    float accuracy = 5.0f + random.nextFloat() * 20.0f;
+
+                    FixProtocol.put(buffer, firstDevice + device, times[device],
+                            latitudes[device] + random.nextGaussian() * accuracy * METER_TO_DEG,
+                            longitudes[device] + random.nextGaussian() * accuracy * METER_TO_DEG,
+                            Double.NaN, accuracy);
+
+                    if (++device == count)
+                        device = 0;
+                }
+
+                buffer.flip();
+
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+
+                buffer.clear();
+                sent.addAndGet(BATCH_FRAMES);
+            }
+
+        } finally {
+
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * ShardWorker
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Owns the filter state of every device in one shard. Only this thread touches it, so no locks are needed.
+ * <p>
+ * Devices are kept in least recently used order: the least recently seen device is evicted when the shard is full,
+ * and devices idle for too long are evicted periodically.
+ */
+final class ShardWorker extends Thread {
+
+    /**
+     * Idle eviction period, in milliseconds.
+     */
+    private static final long EVICTION_PERIOD = 1000;
+
+    /**
+     * Empty polls before parking, and park time in nanoseconds.
+     */
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = 50000;
+
+    // Settings
+    private final FixRing mRing;
+    private final EstimateSink mSink;
+    private final long mTickLength;
+    private final long mIdleTimeout;
+    private final boolean mSinglePrecision;
+
+    /**
+     * Devices in access order.
+     */
+    private final LinkedHashMap<Long, DeviceFilter> mDevices;
+
+    // Statistics, written by this thread only
+    private volatile long mFixCount, mEvictionCount;
+    private volatile int mDeviceCount;
+
+    private volatile boolean mStopped;
+
+    /**
+     * @param index Shard index, for the thread name.
+     * @param ring Fixes for this shard.
+     * @param sink Receives estimates.
+     * @param maxDevices Maximum number of devices in this shard.
+     * @param idleTimeout Devices not seen for this long are evicted, in milliseconds.
+     * @param tickLength Filter tick length, in milliseconds.
+     * @param singlePrecision Keep filter state in single precision.
+     */
+    ShardWorker(
+            int index, FixRing ring, EstimateSink sink, final int maxDevices, long idleTimeout, long tickLength,
+            boolean singlePrecision)
+    {
+        super("shard-" + index);
+
+        mRing = ring;
+        mSink = sink;
+        mIdleTimeout = idleTimeout;
+        mTickLength = tickLength;
+        mSinglePrecision = singlePrecision;
+
+        mDevices = new LinkedHashMap<Long, DeviceFilter>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, DeviceFilter> eldest) {
+
+                if (size() <= maxDevices)
+                    return false;
+
+                mEvictionCount++;
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public void run() {
+
+        long head = mRing.head();
+        long nextEviction = System.currentTimeMillis() + EVICTION_PERIOD;
+        int spins = 0;
+
+        while (!mStopped) {
+
+            final long tail = mRing.tail();
+
+            if (head == tail) {
+
+                // Nothing to do: flush, evict, wait
+                if (spins == 0)
+                    mSink.flush();
+
+                if (++spins > SPINS)
+                    LockSupport.parkNanos(PARK_NANOS);
+
+            } else {
+
+                final long now = System.currentTimeMillis();
+
+                for (long position = head; position < tail; position++)
+                    process(mRing.slot(position), now);
+
+                mRing.release(tail);
+                mFixCount += tail - head;
+                head = tail;
+                spins = 0;
+            }
+
+            final long now = System.currentTimeMillis();
+
+            if (now >= nextEviction) {
+
+                evictIdle(now);
+                nextEviction = now + EVICTION_PERIOD;
+            }
+
+            mDeviceCount = mDevices.size();
+        }
+    }
+
+    void close() {
+
+        mStopped = true;
+    }
+
+    long getFixCount() { return mFixCount; }
+
+    long getEvictionCount() { return mEvictionCount; }
+
+    int getDeviceCount() { return mDeviceCount; }
+
+    private void process(int slot, long now) {
+
+        final long device = mRing.mDevices[slot];
+
+        DeviceFilter filter = mDevices.get(device);
+
+        if (filter == null) {
+
+            filter = new DeviceFilter(mSinglePrecision);
+            mDevices.put(device, filter);
+        }
+
+        filter.mLastSeen = now;
+        filter.fuse(
+                mRing.mTimes[slot], mRing.mLatitudes[slot], mRing.mLongitudes[slot], mRing.mAltitudes[slot],
+                mRing.mAccuracies[slot], mTickLength);
+
+        mSink.onEstimate(
+                device,
+                mRing.mTimes[slot],
+                filter.getLatitude(),
+                filter.getLongitude(),
+                filter.getAltitude(),
+                (float) filter.getAccuracy());
+    }
+
+    /**
+     * Evict devices not seen since the idle timeout. Least recently seen come first, so stop at the first active one.
+     */
+    private void evictIdle(long now) {
+
+        Iterator<DeviceFilter> iterator = mDevices.values().iterator();
+
+        while (iterator.hasNext()) {
+
+            if (now - iterator.next().mLastSeen < mIdleTimeout)
+                break;
+
+            iterator.remove();
+            mEvictionCount++;
+        }
+    }
+}
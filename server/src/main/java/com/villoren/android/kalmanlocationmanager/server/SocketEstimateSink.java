@@ -0,0 +1,180 @@
+/*
+ * SocketEstimateSink
+ *
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.villoren.android.kalmanlocationmanager.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Publishes estimates downstream over a socket, as {@link FixProtocol} frames.
+ * <p>
+ * If the connection drops, estimates are dropped and counted while reconnecting, with exponential backoff, so the
+ * worker keeps fusing meanwhile.
+ */
+class SocketEstimateSink implements EstimateSink {
+
+    private static final int BUFFER_FRAMES = 1024;
+
+    /**
+     * Reconnection backoff bounds, and connection timeout, in milliseconds.
+     */
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 30000;
+    private static final int CONNECT_TIMEOUT = 1000;
+
+    private final InetSocketAddress mAddress;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_FRAMES * FixProtocol.FRAME_SIZE);
+
+    /**
+     * Current connection, null while disconnected, and when to try reconnecting.
+     */
+    private SocketChannel mChannel;
+    private long mBackoff = MIN_BACKOFF;
+    private long mNextConnect;
+
+    // Statistics, written by the worker thread only
+    private volatile long mDroppedCount, mReconnectCount;
+
+    /**
+     * @param address Downstream address. Connected right away.
+     */
+    SocketEstimateSink(InetSocketAddress address) throws IOException {
+
+        mAddress = address;
+        mChannel = connect(address);
+    }
+
+    @Override
+    public void onEstimate(long device, long time, double latitude, double longitude, double altitude, float accuracy) {
+
+        if (mChannel == null && !reconnect()) {
+
+            mDroppedCount++;
+            return;
+        }
+
+        if (mBuffer.remaining() < FixProtocol.FRAME_SIZE)
+            flush();
+
+        FixProtocol.put(mBuffer, device, time, latitude, longitude, altitude, accuracy);
+    }
+
+    @Override
+    public void flush() {
+
+        if (mChannel == null || mBuffer.position() == 0)
+            return;
+
+        mBuffer.flip();
+
+        try {
+
+            while (mBuffer.hasRemaining())
+                mChannel.write(mBuffer);
+
+        } catch (IOException e) {
+
+            System.err.println("Downstream connection lost: " + e);
+            mDroppedCount += mBuffer.limit() / FixProtocol.FRAME_SIZE;
+            disconnect();
+
+        } finally {
+
+            mBuffer.clear();
+        }
+    }
+
+    /**
+     * @return Estimates dropped while disconnected.
+     */
+    long getDroppedCount() { return mDroppedCount; }
+
+    /**
+     * @return Successful reconnections.
+     */
+    long getReconnectCount() { return mReconnectCount; }
+
+    /**
+     * Try reconnecting, if the backoff allows.
+     *
+     * @return True if connected.
+     */
+    private boolean reconnect() {
+
+        final long now = System.currentTimeMillis();
+
+        if (now < mNextConnect)
+            return false;
+
+        try {
+
+            mChannel = connect(mAddress);
+            mBackoff = MIN_BACKOFF;
+            mReconnectCount++;
+            return true;
+
+        } catch (IOException e) {
+
+            mNextConnect = now + mBackoff;
+            mBackoff = Math.min(2 * mBackoff, MAX_BACKOFF);
+            return false;
+        }
+    }
+
+    private void disconnect() {
+
+        try {
+
+            mChannel.close();
+
+        } catch (IOException e) {
+
+            // Nothing else to do
+        }
+
+        mChannel = null;
+        mNextConnect = System.currentTimeMillis() + mBackoff;
+    }
+
+    private static SocketChannel connect(InetSocketAddress address) throws IOException {
+
+        SocketChannel channel = SocketChannel.open();
+
+        try {
+
+            channel.socket().connect(address, CONNECT_TIMEOUT);
+            channel.socket().setTcpNoDelay(true);
+
+        } catch (IOException e) {
+
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+    }
+}